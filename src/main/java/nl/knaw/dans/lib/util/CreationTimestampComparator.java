@@ -19,20 +19,22 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.Comparator;
+import java.nio.file.attribute.FileTime;
 
-public class CreationTimestampComparator implements Comparator<Path> {
+public class CreationTimestampComparator implements KeyBasedComparator<Path, FileTime> {
 
     @Override
-    public int compare(Path path1, Path path2) {
+    public FileTime extractKey(Path path) {
         try {
-            BasicFileAttributes attr1 = Files.readAttributes(path1, BasicFileAttributes.class);
-            BasicFileAttributes attr2 = Files.readAttributes(path2, BasicFileAttributes.class);
-
-            return attr1.creationTime().compareTo(attr2.creationTime());
+            return Files.readAttributes(path, BasicFileAttributes.class).creationTime();
         }
         catch (IOException e) {
             throw new RuntimeException("Failed to read file attributes for comparison", e);
         }
     }
+
+    @Override
+    public int compareKeys(FileTime creationTime1, FileTime creationTime2) {
+        return creationTime1.compareTo(creationTime2);
+    }
 }
@@ -45,12 +45,46 @@ public class CustomFileFilters {
         }
     }
 
+    @AllArgsConstructor
+    private static class IsDescendantAtDepthFilter extends AbstractFileFilter {
+        private final Path ancestor;
+        private final int depth;
+        private final boolean directoriesOnly;
+
+        @Override
+        public boolean accept(File file) {
+            var path = file.toPath();
+            return path.getNameCount() - ancestor.getNameCount() == depth && path.startsWith(ancestor) && (!directoriesOnly || file.isDirectory());
+        }
+    }
+
     public static IOFileFilter subDirectoryOf(Path parent) {
         return new IsSubdirOfFilter(parent);
     }
 
+    /**
+     * Accepts directories that are exactly {@code depth} levels below {@code ancestor}. A depth of 1 is the same as {@link #subDirectoryOf(Path)}.
+     *
+     * @param ancestor the ancestor directory
+     * @param depth    the number of levels below the ancestor
+     * @return the filter
+     */
+    public static IOFileFilter subDirectoryOf(Path ancestor, int depth) {
+        return depth == 1 ? subDirectoryOf(ancestor) : new IsDescendantAtDepthFilter(ancestor, depth, true);
+    }
 
     public static IOFileFilter childOf(Path parent) {
         return new IsChildOfFilter(parent);
     }
+
+    /**
+     * Accepts files and directories that are exactly {@code depth} levels below {@code ancestor}. A depth of 1 is the same as {@link #childOf(Path)}.
+     *
+     * @param ancestor the ancestor directory
+     * @param depth    the number of levels below the ancestor
+     * @return the filter
+     */
+    public static IOFileFilter childOf(Path ancestor, int depth) {
+        return depth == 1 ? childOf(ancestor) : new IsDescendantAtDepthFilter(ancestor, depth, false);
+    }
 }
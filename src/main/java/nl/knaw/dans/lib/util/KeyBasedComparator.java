@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util;
+
+import java.util.Comparator;
+
+/**
+ * A comparator that compares objects by a sort key that is derived from them. If extracting the key is expensive, e.g. because it requires reading a file, users that compare the same objects many
+ * times, such as {@link nl.knaw.dans.lib.util.inbox.Inbox}, can extract the key once per object and compare the keys instead.
+ *
+ * @param <T> the type of objects that may be compared
+ * @param <K> the type of the sort key
+ */
+public interface KeyBasedComparator<T, K> extends Comparator<T> {
+
+    /**
+     * Extracts the sort key from an object.
+     *
+     * @param object the object
+     * @return the sort key
+     */
+    K extractKey(T object);
+
+    /**
+     * Compares two sort keys.
+     *
+     * @param key1 the first key
+     * @param key2 the second key
+     * @return a negative integer, zero, or a positive integer as the first key is less than, equal to, or greater than the second
+     */
+    int compareKeys(K key1, K key2);
+
+    @Override
+    default int compare(T object1, T object2) {
+        return compareKeys(extractKey(object1), extractKey(object2));
+    }
+}
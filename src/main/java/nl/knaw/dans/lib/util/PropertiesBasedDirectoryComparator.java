@@ -20,22 +20,23 @@ import lombok.AllArgsConstructor;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Comparator;
 import java.util.Properties;
 import java.util.function.Function;
 
 @AllArgsConstructor
-public class PropertiesBasedDirectoryComparator<T extends Comparable<T>> implements Comparator<Path> {
+public class PropertiesBasedDirectoryComparator<T extends Comparable<T>> implements KeyBasedComparator<Path, T> {
 
     private final String propertiesFileName;
     private final String propertyName;
     private final Function<String, T> valueConverter;
 
     @Override
-    public int compare(Path dir1, Path dir2) {
-        T value1 = getPropertyValue(dir1);
-        T value2 = getPropertyValue(dir2);
+    public T extractKey(Path dir) {
+        return getPropertyValue(dir);
+    }
 
+    @Override
+    public int compareKeys(T value1, T value2) {
         if (value1 == null && value2 == null) {
             return 0;
         }
@@ -52,8 +53,8 @@ public class PropertiesBasedDirectoryComparator<T extends Comparable<T>> impleme
     private T getPropertyValue(Path path) {
         var propsFile = path.resolve(propertiesFileName);
         var props = new Properties();
-        try {
-            props.load(Files.newInputStream(propsFile));
+        try (var inputStream = Files.newInputStream(propsFile)) {
+            props.load(inputStream);
         }
         catch (IOException e) {
             throw new RuntimeException("Failed to load properties from " + propsFile, e);
@@ -0,0 +1,31 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.inbox;
+
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Creates a task that processes a batch of inbox items, as an alternative to {@link InboxTaskFactory}. See {@link Inbox} for how the batches are formed.
+ */
+public interface BatchInboxTaskFactory {
+
+    /**
+     * @param paths the items of the batch, in the order defined by the inbox item comparator; never empty
+     * @return the task that processes the batch
+     */
+    Runnable createInboxTask(List<Path> paths);
+}
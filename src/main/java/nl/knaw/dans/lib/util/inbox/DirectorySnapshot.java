@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.inbox;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+/**
+ * The set of names of the children of a directory, as seen by the last scan. The names are kept in an open-addressing hash table backed by arrays, so that a scan of a large directory only costs
+ * one pass over a {@link java.nio.file.DirectoryStream}: no {@link java.io.File} objects are created and no attributes are read for entries that were already known.
+ */
+class DirectorySnapshot {
+    private static final String REMOVED = new String("<removed>");
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final Path directory;
+    private String[] names;
+    private int[] hashes;
+    // The number of the last scan in which each entry was seen
+    private int[] seenInScan;
+    private int size;
+    private int removed;
+    private int scan;
+
+    DirectorySnapshot(Path directory) {
+        this.directory = directory;
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Lists the directory and updates the snapshot. Names that were not in the snapshot are reported to {@code onCreated}; names that are no longer in the directory are removed from the snapshot.
+     *
+     * @param onCreated receives the paths of the new children
+     * @throws IOException if the directory could not be listed
+     */
+    void scan(Consumer<Path> onCreated) throws IOException {
+        scan(onCreated, name -> {
+        });
+    }
+
+    /**
+     * Lists the directory and updates the snapshot. Names that were not in the snapshot are reported to {@code onCreated}; names that are no longer in the directory are removed from the snapshot and
+     * reported to {@code onRemoved}.
+     *
+     * @param onCreated receives the paths of the new children
+     * @param onRemoved receives the names of the removed children
+     * @throws IOException if the directory could not be listed
+     */
+    void scan(Consumer<Path> onCreated, Consumer<String> onRemoved) throws IOException {
+        scan++;
+        try (var stream = Files.newDirectoryStream(directory)) {
+            for (Path child : stream) {
+                if (mark(child.getFileName().toString())) {
+                    onCreated.accept(child);
+                }
+            }
+        }
+        for (int i = 0; i < names.length; i++) {
+            if (names[i] != null && names[i] != REMOVED && seenInScan[i] != scan) {
+                onRemoved.accept(names[i]);
+                names[i] = REMOVED;
+                size--;
+                removed++;
+            }
+        }
+    }
+
+    /**
+     * Adds a name to the snapshot.
+     *
+     * @param name the name of the child
+     * @return true if the name was not yet in the snapshot
+     */
+    boolean add(String name) {
+        return mark(name);
+    }
+
+    /**
+     * Removes a name from the snapshot.
+     *
+     * @param name the name of the child
+     * @return true if the name was in the snapshot
+     */
+    boolean remove(String name) {
+        int hash = name.hashCode();
+        int i = indexOf(name, hash);
+        if (i < 0) {
+            return false;
+        }
+        names[i] = REMOVED;
+        size--;
+        removed++;
+        return true;
+    }
+
+    boolean contains(String name) {
+        return indexOf(name, name.hashCode()) >= 0;
+    }
+
+    int size() {
+        return size;
+    }
+
+    private int indexOf(String name, int hash) {
+        int mask = names.length - 1;
+        for (int i = spread(hash) & mask; names[i] != null; i = (i + 1) & mask) {
+            if (names[i] != REMOVED && hashes[i] == hash && names[i].equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // Marks the name as seen in the current scan, adding it if necessary. Returns true if it was added.
+    private boolean mark(String name) {
+        int hash = name.hashCode();
+        int existing = indexOf(name, hash);
+        if (existing >= 0) {
+            seenInScan[existing] = scan;
+            return false;
+        }
+        if ((size + removed + 1) * 4 > names.length * 3) {
+            rehash();
+        }
+        int mask = names.length - 1;
+        int i = spread(hash) & mask;
+        while (names[i] != null && names[i] != REMOVED) {
+            i = (i + 1) & mask;
+        }
+        if (names[i] == REMOVED) {
+            removed--;
+        }
+        names[i] = name;
+        hashes[i] = hash;
+        seenInScan[i] = scan;
+        size++;
+        return true;
+    }
+
+    private void rehash() {
+        var oldNames = names;
+        var oldHashes = hashes;
+        var oldSeenInScan = seenInScan;
+        int capacity = names.length;
+        // Only grow if the table is actually full; otherwise just clean up the removed entries
+        while (size * 2 >= capacity) {
+            capacity *= 2;
+        }
+        allocate(capacity);
+        int mask = capacity - 1;
+        for (int j = 0; j < oldNames.length; j++) {
+            if (oldNames[j] != null && oldNames[j] != REMOVED) {
+                int i = spread(oldHashes[j]) & mask;
+                while (names[i] != null) {
+                    i = (i + 1) & mask;
+                }
+                names[i] = oldNames[j];
+                hashes[i] = oldHashes[j];
+                seenInScan[i] = oldSeenInScan[j];
+            }
+        }
+        removed = 0;
+    }
+
+    private void allocate(int capacity) {
+        names = new String[capacity];
+        hashes = new int[capacity];
+        seenInScan = new int[capacity];
+    }
+
+    private static int spread(int hash) {
+        return hash ^ (hash >>> 16);
+    }
+}
@@ -15,74 +15,209 @@
  */
 package nl.knaw.dans.lib.util.inbox;
 
+import com.codahale.metrics.MetricRegistry;
 import io.dropwizard.lifecycle.Managed;
 import lombok.Builder;
 import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 import nl.knaw.dans.lib.util.CustomFileFilters;
+import nl.knaw.dans.lib.util.KeyBasedComparator;
 import org.apache.commons.io.filefilter.FileFilterUtils;
 import org.apache.commons.io.filefilter.IOFileFilter;
 import org.apache.commons.io.monitor.FileAlterationListenerAdaptor;
-import org.apache.commons.io.monitor.FileAlterationMonitor;
 import org.apache.commons.io.monitor.FileAlterationObserver;
-import org.apache.commons.io.monitor.FileEntry;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.LinkedList;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
 /**
  * <p>
- * A managed inbox that monitors a directory for new files and directories, processes them using a provided task factory, and allows for custom file filtering. A managed inbox that monitors a
- * directory for new files and/or directories, processes them using a provided task factory, and allows for custom file filtering. Note, however, that the inbox does not support recursive monitoring
- * of subdirectories; it only processes files and directories directly within the specified inbox directory.
+ * A managed inbox that monitors a directory for new files and directories, processes them using a provided task factory, and allows for custom file filtering. By default, the inbox only processes
+ * files and directories directly within the specified inbox directory.
  * </p>
  * <p>
- * The inbox can be started and stopped, and it supports initial processing of existing items in the inbox.
+ * The inbox can be started and stopped, and it supports initial processing of existing items in the inbox. New items are detected by polling or through a watch service (see {@link InboxMonitor})
+ * and handed to the task factory in the order defined by the {@code inboxItemComparator}. The options are described with the parameters of the builder.
  * </p>
  */
 @Slf4j
 public class Inbox extends FileAlterationListenerAdaptor implements Managed {
+    private static final long MAX_CLAIM_RETRY_DELAY_MILLIS = 300_000;
+    /**
+     * The way in which the inbox detects new items.
+     */
+    public enum DetectionMode {
+        /**
+         * List the inbox directory every polling interval.
+         */
+        POLLING,
+        /**
+         * Use a {@link java.nio.file.WatchService} to get notified of new items, with a periodic reconciliation scan as a fallback for missed events.
+         */
+        WATCH_SERVICE
+    }
+
     @NonNull
-    private final FileEntry inboxFileEntry;
+    private final Path inbox;
     private final IOFileFilter fileFilter;
-    @NonNull
     private final InboxTaskFactory taskFactory;
+    private final BatchInboxTaskFactory batchTaskFactory;
     private final Runnable onPollingHandler;
     @NonNull
     private final ExecutorService executorService;
     @NonNull
     private final Comparator<Path> inboxItemComparator;
 
-    private final FileAlterationMonitor monitor;
     private final CountDownLatch awaitLatch;
-    private final List<Path> createdFilesAndDirectories = new LinkedList<>();
-    private boolean initialItemsProcessed = false;
+    private final KeyBasedComparator<Path, Object> inboxItemKeyComparator;
+    private final PriorityQueue<PendingItem> createdFilesAndDirectories = new PriorityQueue<>(this::comparePendingItems);
+    private final List<Path> itemsWithoutSortKey = new ArrayList<>();
+    private long pendingItemSequence;
     private final int startupGracePeriodMillis;
+    private final DetectionMode detectionMode;
+    private final int interval;
+    private final int reconciliationIntervalMillis;
+    private final int depth;
+    private final int scanParallelism;
+    private final int maxItemsInFlight;
+    private final int maxPendingItems;
+    // Set when items were left to the monitor because too many items were pending
+    private boolean pendingItemsOverflowed;
+    // Set during the round that reports the items left to the monitor again
+    private boolean redetectingOverflowedItems;
+    private final AtomicInteger itemsInFlight = new AtomicInteger();
+    private final StableItemDetector stableItemDetector;
+    private final Path journalFile;
+    private volatile InboxJournal journal;
+    private boolean firstRoundCompleted;
+    private volatile InboxMonitor monitor;
+    private final InboxMetrics metrics;
+    private long roundStart;
+    private final InboxClaims claims;
+    private boolean claimsOpened;
+    // Items that could not be claimed, by path; they are added to the pending items again when their retry is due
+    private final Map<Path, ClaimRetry> claimRetries = new LinkedHashMap<>();
+    private final int maxBatchSize;
+    private final long maxBatchBytes;
+    private final long batchLingerMillis;
+    private final List<BatchItem> batch = new ArrayList<>();
+    private long batchBytes;
+    private long batchStart;
+    private final boolean virtualThreads;
 
+    /**
+     * @param inbox                        the inbox directory
+     * @param fileFilter                   the filter for the items to process; it is applied to new items, and again to the items it rejected when the directory that contains them changes and
+     *                                     every {@code reconciliationIntervalMillis}, so it may depend on the contents of an item
+     * @param taskFactory                  creates a task for each item; exactly one of {@code taskFactory} and {@code batchTaskFactory} must be set
+     * @param batchTaskFactory             creates a task for a batch of items, in order, so that the cost of a transaction or a remote call can be shared by many items; a batch counts as one task
+     *                                     in flight, and its items are recorded in the journal as finished only when the whole batch has finished
+     * @param onPollingHandler             called at the start of each round
+     * @param interval                     the time between rounds in milliseconds, default 1000
+     * @param executorService              runs the tasks; default a single thread, or a virtual thread per task if {@code virtualThreads} is set
+     * @param inboxItemComparator          the order in which pending items are handed to the task factory; if it is a {@link KeyBasedComparator}, the sort key of an item is extracted once, when
+     *                                     the item is detected, and again in later rounds until that succeeds
+     * @param awaitLatch                   if set, the inbox does not start until this latch is released
+     * @param startupGracePeriodMillis     the time between attempts to start monitoring an inbox directory that is not available, default 10 seconds
+     * @param detectionMode                how new items are detected, default {@link DetectionMode#POLLING}
+     * @param reconciliationIntervalMillis the time between full listings of the inbox, in addition to those after lost watch events, default 60 seconds
+     * @param maxItemsInFlight             the maximum number of tasks submitted but not finished; further items stay pending until earlier tasks have finished. Not limited by default, or 100
+     *                                     with {@code virtualThreads} and no {@code executorService}
+     * @param maxPendingItems              the maximum number of items kept in memory while they wait to be submitted, default 10,000; further items are forgotten by the monitor, which reports
+     *                                     them again in a full listing of the inbox once half of the pending items have been submitted
+     * @param stableItemWindowMillis       if set, an item is only processed after its size and modification time have not changed for this long; see {@link StableItemDetector}
+     * @param stableItemMarker             if set, an item is only processed once a marker file with this name appears in it (directories) or next to it (files, with the marker name appended to
+     *                                     the file name); files whose name ends in the marker name are never items themselves
+     * @param journalFile                  if set, the inbox records which items were accepted, started and finished, and does not process finished items again after a restart; see
+     *                                     {@link InboxJournal}
+     * @param depth                        the level below the inbox directory at which the items are found, default 1; the directories in between are monitored as well
+     * @param scanParallelism              the number of threads that list changed directories of a sharded inbox in parallel, default 1
+     * @param metricRegistry               if set, the inbox registers its metrics with this registry; see {@link InboxMetrics}
+     * @param metricsPrefix                the prefix of the metric names, default the class name followed by the absolute path of the inbox; building a second inbox with the same prefix and
+     *                                     registry fails with an {@link IllegalArgumentException}
+     * @param claimDirectory               if set, several nodes can share the inbox: a node claims an item by moving it into its own subdirectory of this directory, and the task receives the
+     *                                     claimed location; see {@link InboxClaims}
+     * @param nodeId                       the unique id of this node among those sharing the inbox, default the host name
+     * @param claimLeaseMillis             the time after which the items claimed by a node that has not renewed its lease are moved back into the inbox, default 5 minutes
+     * @param maxBatchSize                 the number of items that completes a batch, default 100
+     * @param maxBatchBytes                the total size of the items that completes a batch, not limited by default
+     * @param batchLingerMillis            the time the first item of an incomplete batch waits before the batch is submitted while no more items are pending, default 0; effectively rounded
+     *                                     up to a multiple of the {@code interval}
+     * @param virtualThreads               run the monitor thread and, without an {@code executorService}, each task on a virtual thread; falls back to platform threads before Java 21
+     */
     @Builder
-    private Inbox(Path inbox, IOFileFilter fileFilter, @NonNull InboxTaskFactory taskFactory, Runnable onPollingHandler, int interval, ExecutorService executorService, Comparator<Path> inboxItemComparator,
-        CountDownLatch awaitLatch, Integer startupGracePeriodMillis) {
-        this.inboxFileEntry = new FileEntry(inbox.toFile());
-        this.fileFilter = fileFilter == null ? CustomFileFilters.subDirectoryOf(inbox) : FileFilterUtils.and(fileFilter, CustomFileFilters.childOf(inbox));
+    private Inbox(Path inbox, IOFileFilter fileFilter, InboxTaskFactory taskFactory, BatchInboxTaskFactory batchTaskFactory, Runnable onPollingHandler, int interval, ExecutorService executorService, Comparator<Path> inboxItemComparator,
+        CountDownLatch awaitLatch, Integer startupGracePeriodMillis, DetectionMode detectionMode, Integer reconciliationIntervalMillis, Integer maxItemsInFlight, Integer maxPendingItems,
+        Integer stableItemWindowMillis, String stableItemMarker, Path journalFile, Integer depth, Integer scanParallelism, MetricRegistry metricRegistry, String metricsPrefix, Path claimDirectory,
+        String nodeId, Integer claimLeaseMillis, Integer maxBatchSize, Long maxBatchBytes, Integer batchLingerMillis, boolean virtualThreads) {
+        if ((taskFactory == null) == (batchTaskFactory == null)) {
+            throw new IllegalArgumentException("Exactly one of taskFactory and batchTaskFactory must be set");
+        }
+        this.inbox = inbox;
+        this.depth = depth == null || depth <= 0 ? 1 : depth;
+        this.scanParallelism = scanParallelism == null || scanParallelism <= 0 ? 1 : scanParallelism;
+        this.fileFilter = withoutMarkerFiles(
+            fileFilter == null ? CustomFileFilters.subDirectoryOf(inbox, this.depth) : FileFilterUtils.and(fileFilter, CustomFileFilters.childOf(inbox, this.depth)), stableItemMarker);
         this.taskFactory = taskFactory;
+        this.batchTaskFactory = batchTaskFactory;
+        this.maxBatchSize = batchTaskFactory == null ? 1 : maxBatchSize == null || maxBatchSize <= 0 ? 100 : maxBatchSize;
+        this.maxBatchBytes = batchTaskFactory == null || maxBatchBytes == null || maxBatchBytes <= 0 ? Long.MAX_VALUE : maxBatchBytes;
+        this.batchLingerMillis = batchTaskFactory == null || batchLingerMillis == null || batchLingerMillis < 0 ? 0 : batchLingerMillis;
         this.onPollingHandler = onPollingHandler == null ? () -> {
         } : onPollingHandler;
-        this.executorService = executorService == null ? Executors.newSingleThreadExecutor() : executorService;
+        this.virtualThreads = virtualThreads;
+        this.executorService = executorService != null ? executorService :
+            // Not Executors.newSingleThreadExecutor(), which hides the queue of the ThreadPoolExecutor from the executor-queue metric
+            virtualThreads ? VirtualThreads.newThreadPerTaskExecutor("InboxTask") : new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>());
         this.inboxItemComparator = inboxItemComparator == null ? Comparator.comparing(Path::getFileName) : inboxItemComparator;
-        this.monitor = new FileAlterationMonitor(interval == 0 ? 1000 : interval);
+        this.inboxItemKeyComparator = asKeyBasedComparator(this.inboxItemComparator);
+        this.interval = interval == 0 ? 1000 : interval;
         this.awaitLatch = awaitLatch;
         this.startupGracePeriodMillis = startupGracePeriodMillis == null || startupGracePeriodMillis <= 0 ? 10_000 : startupGracePeriodMillis;
+        this.detectionMode = detectionMode == null ? DetectionMode.POLLING : detectionMode;
+        this.reconciliationIntervalMillis = reconciliationIntervalMillis == null || reconciliationIntervalMillis <= 0 ? 60_000 : reconciliationIntervalMillis;
+        this.maxItemsInFlight = maxItemsInFlight != null && maxItemsInFlight > 0 ? maxItemsInFlight :
+            virtualThreads && executorService == null ? 100 : Integer.MAX_VALUE;
+        this.maxPendingItems = maxPendingItems == null || maxPendingItems <= 0 ? 10_000 : maxPendingItems;
+        this.stableItemDetector = (stableItemWindowMillis == null || stableItemWindowMillis <= 0) && stableItemMarker == null ? null :
+            new StableItemDetector(stableItemWindowMillis == null ? 0 : stableItemWindowMillis, stableItemMarker);
+        this.journalFile = journalFile;
+        this.metrics = metricRegistry == null ? null : new InboxMetrics(metricRegistry,
+            metricsPrefix == null ? MetricRegistry.name(Inbox.class, inbox.toAbsolutePath().normalize().toString()) : metricsPrefix,
+            () -> createdFilesAndDirectories.size() + itemsWithoutSortKey.size() + batch.size(),
+            stableItemDetector == null ? null : stableItemDetector::size, this.executorService);
+        this.claims = claimDirectory == null ? null : new InboxClaims(inbox, claimDirectory, nodeId == null ? getHostName() : nodeId,
+            claimLeaseMillis == null || claimLeaseMillis <= 0 ? 300_000 : claimLeaseMillis, this.depth);
+    }
+
+    private static String getHostName() {
+        try {
+            return InetAddress.getLocalHost().getHostName();
+        }
+        catch (UnknownHostException e) {
+            throw new IllegalStateException("Cannot determine the host name to use as node id; configure the node id explicitly", e);
+        }
     }
 
     @Override
@@ -91,32 +226,22 @@ public class Inbox extends FileAlterationListenerAdaptor implements Managed {
             log.info("Waiting for latch to be released before starting inbox");
             awaitLatch.await();
         }
-        log.info("Starting Inbox at '{}'", this.inboxFileEntry.getFile());
+        log.info("Starting Inbox at '{}'", inbox);
 
         // Start asynchronously and retry until inbox becomes available
         executorService.submit(this::awaitInboxAndStartMonitor);
     }
 
     private void awaitInboxAndStartMonitor() {
-        var inboxPath = inboxFileEntry.getFile().toPath();
         while (true) {
-            if (!Files.exists(inboxPath)) {
-                log.warn("Inbox directory does not exist: {}. Retrying in {} ms", inboxPath, startupGracePeriodMillis);
-            }
-            else if (!Files.isDirectory(inboxPath)) {
-                log.warn("Inbox path is not a directory: {}. Retrying in {} ms", inboxPath, startupGracePeriodMillis);
-            }
-            else if (!Files.isReadable(inboxPath)) {
-                log.warn("Inbox directory is not readable: {}. Retrying in {} ms", inboxPath, startupGracePeriodMillis);
-            }
-            else {
+            if (isInboxAvailable()) {
                 try {
-                    log.debug("Starting file alteration monitor for path '{}'", this.inboxFileEntry.getFile());
-                    startFileAlterationMonitor();
+                    log.debug("Starting {} monitor for path '{}'", detectionMode, inbox);
+                    startMonitor();
                     return;
                 }
                 catch (IOException e) {
-                    log.error("Failed to start file alteration monitor: {}. Retrying in {} ms", e.getMessage(), startupGracePeriodMillis);
+                    log.error("Failed to start inbox monitor: {}. Retrying in {} ms", e.getMessage(), startupGracePeriodMillis);
                 }
                 catch (Exception e) {
                     log.error("Unexpected error while starting inbox monitor", e);
@@ -133,101 +258,458 @@ public class Inbox extends FileAlterationListenerAdaptor implements Managed {
         }
     }
 
+    boolean isInboxAvailable() {
+        if (!Files.exists(inbox)) {
+            log.warn("Inbox directory does not exist: {}. Retrying in {} ms", inbox, startupGracePeriodMillis);
+        }
+        else if (!Files.isDirectory(inbox)) {
+            log.warn("Inbox path is not a directory: {}. Retrying in {} ms", inbox, startupGracePeriodMillis);
+        }
+        else if (!Files.isReadable(inbox)) {
+            log.warn("Inbox directory is not readable: {}. Retrying in {} ms", inbox, startupGracePeriodMillis);
+        }
+        else {
+            return true;
+        }
+        return false;
+    }
+
     @Override
     public void stop() throws Exception {
-        log.info("Stopping Inbox at '{}'", this.inboxFileEntry.getFile());
-        monitor.stop();
+        log.info("Stopping Inbox at '{}'", inbox);
+        if (monitor != null) {
+            monitor.stop();
+        }
+        closeJournal();
+    }
+
+    // Called when the inbox is added to an InboxGroup, whose executor service then runs the tasks of the inbox
+    void joinGroup(ExecutorService groupExecutorService) {
+        if (metrics != null) {
+            metrics.executorServiceChanged(groupExecutorService);
+        }
+    }
+
+    void closeJournal() {
+        var closedJournal = journal;
+        if (closedJournal != null) {
+            // createMonitor() opens the journal again when the inbox is restarted
+            journal = null;
+            closedJournal.close();
+        }
     }
 
+    // The marker of a file item is a sibling file in the inbox; it must not be picked up as an item of its own
+    private static IOFileFilter withoutMarkerFiles(IOFileFilter fileFilter, String stableItemMarker) {
+        if (stableItemMarker == null) {
+            return fileFilter;
+        }
+        return FileFilterUtils.and(fileFilter, FileFilterUtils.notFileFilter(FileFilterUtils.and(FileFilterUtils.suffixFileFilter(stableItemMarker), FileFilterUtils.fileFileFilter())));
+    }
+
+    /**
+     * Reports a new file as an item of the inbox.
+     *
+     * @param file the new file
+     * @deprecated the inbox no longer uses a {@link FileAlterationObserver} but detects its items itself; this method is only kept for compatibility, and must not be called while the inbox is
+     * running
+     */
     @Override
+    @Deprecated
     public void onFileCreate(File file) {
-        log.debug("New inbox item detected at: {}", file);
-        createdFilesAndDirectories.add(file.toPath());
+        itemDetected(file.toPath());
     }
 
+    /**
+     * Reports a new directory as an item of the inbox.
+     *
+     * @param directory the new directory
+     * @deprecated see {@link #onFileCreate(File)}
+     */
     @Override
+    @Deprecated
     public void onDirectoryCreate(File directory) {
-        log.debug("New inbox item detected at: {}", directory);
-        createdFilesAndDirectories.add(directory.toPath());
+        itemDetected(directory.toPath());
     }
 
+    /**
+     * Starts a round, like the monitor of the inbox does.
+     *
+     * @param observer ignored
+     * @deprecated see {@link #onFileCreate(File)}
+     */
     @Override
+    @Deprecated
     public void onStart(FileAlterationObserver observer) {
-        log.debug("Start polling round for inbox at: {}", inboxFileEntry.getFile());
-        processInitialItems();
-        onPollingHandler.run();
+        beginRound();
     }
 
+    /**
+     * Ends a round, like the monitor of the inbox does, which submits the items reported in the round.
+     *
+     * @param observer ignored
+     * @deprecated see {@link #onFileCreate(File)}
+     */
     @Override
+    @Deprecated
     public void onStop(FileAlterationObserver observer) {
-        log.debug("Processing {} created files and directories", createdFilesAndDirectories.size());
-        createdFilesAndDirectories.sort(inboxItemComparator);
-        for (Path file : createdFilesAndDirectories) {
-            log.debug("Processing created file: {}", file);
-            executorService.submit(taskFactory.createInboxTask(file));
-        }
-        createdFilesAndDirectories.clear();
+        endRound();
     }
 
-    private void processInitialItems() {
-        if (initialItemsProcessed) {
+    void itemDetected(Path item) {
+        log.debug("New inbox item detected at: {}", item);
+        var currentMonitor = monitor;
+        if (currentMonitor != null && pendingItemCount() >= maxPendingItems) {
+            log.debug("Maximum of {} pending items reached; leaving {} to the monitor", maxPendingItems, item);
+            currentMonitor.forget(item);
+            pendingItemsOverflowed = true;
             return;
         }
-        try {
-            List<Path> filesToProcess = new ArrayList<>();
-            Path inboxPath = inboxFileEntry.getFile().toPath();
+        if (metrics != null) {
+            metrics.itemDetected();
+        }
+        if (journal != null) {
+            // Only the first round, and a round that reports items left to the monitor again, report items that may have been processed before the inbox was started
+            if ((!firstRoundCompleted || redetectingOverflowedItems) && journal.isFinished(item)) {
+                log.debug("Inbox item {} was already processed according to the journal; skipping", item);
+                return;
+            }
+            journal.record(item, InboxJournal.State.ACCEPTED);
+        }
+        if (stableItemDetector == null) {
+            addPendingItem(item);
+        }
+        else {
+            stableItemDetector.add(item);
+        }
+    }
+
+    void beginRound() {
+        log.debug("Start polling round for inbox at: {}", inbox);
+        roundStart = System.nanoTime();
+        if (claims != null) {
+            claims.maintain();
+        }
+        onPollingHandler.run();
+    }
+
+    void endRound() {
+        preparePendingItems();
+        submitPendingItems(executorService, itemsInFlight, maxItemsInFlight, Integer.MAX_VALUE);
+    }
 
-            try (var stream = Files.list(inboxPath)) {
-                stream.filter(path -> fileFilter.accept(path.toFile()))
-                    .forEach(filesToProcess::add);
+    void preparePendingItems() {
+        redetectingOverflowedItems = false;
+        var currentMonitor = monitor;
+        if (pendingItemsOverflowed && currentMonitor != null && pendingItemCount() <= maxPendingItems / 2) {
+            log.debug("Pending items below {}; listing the inbox again for the items left to the monitor", maxPendingItems / 2);
+            pendingItemsOverflowed = false;
+            redetectingOverflowedItems = true;
+            currentMonitor.requestReconciliation();
+        }
+        if (!claimRetries.isEmpty()) {
+            long now = System.currentTimeMillis();
+            for (var retry : claimRetries.values()) {
+                if (!retry.pending && retry.nextAttempt <= now) {
+                    retry.pending = true;
+                    addPendingItem(retry.item);
+                }
             }
+        }
+        if (!itemsWithoutSortKey.isEmpty()) {
+            var retry = new ArrayList<>(itemsWithoutSortKey);
+            itemsWithoutSortKey.clear();
+            retry.forEach(this::addPendingItem);
+        }
+        if (stableItemDetector != null) {
+            stableItemDetector.releaseStableItems(this::addPendingItem);
+        }
+        firstRoundCompleted = true;
+        if (metrics != null) {
+            metrics.roundCompleted(System.nanoTime() - roundStart);
+        }
+        log.debug("{} created files and directories pending", createdFilesAndDirectories.size());
+    }
 
-            filesToProcess.sort(inboxItemComparator);
+    private int pendingItemCount() {
+        return createdFilesAndDirectories.size() + itemsWithoutSortKey.size() + batch.size() + (stableItemDetector == null ? 0 : stableItemDetector.size());
+    }
 
-            for (Path file : filesToProcess) {
-                log.debug("Initial inbox item detected at: {}", file);
-                executorService.submit(taskFactory.createInboxTask(file));
+    private void addPendingItem(Path item) {
+        Object key = null;
+        if (inboxItemKeyComparator != null) {
+            try {
+                key = inboxItemKeyComparator.extractKey(item);
+            }
+            catch (RuntimeException e) {
+                log.warn("Could not determine the sort key of inbox item {}; retrying in the next round: {}", item, e.getMessage());
+                itemsWithoutSortKey.add(item);
+                return;
             }
         }
+        createdFilesAndDirectories.add(new PendingItem(item, key, pendingItemSequence++));
+    }
+
+    private int comparePendingItems(PendingItem item1, PendingItem item2) {
+        int result = inboxItemKeyComparator != null ? inboxItemKeyComparator.compareKeys(item1.key, item2.key) : inboxItemComparator.compare(item1.path, item2.path);
+        // Keep items with equal keys in the order in which they were detected
+        return result != 0 ? result : Long.compare(item1.sequence, item2.sequence);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static KeyBasedComparator<Path, Object> asKeyBasedComparator(Comparator<Path> comparator) {
+        return comparator instanceof KeyBasedComparator ? (KeyBasedComparator<Path, Object>) comparator : null;
+    }
+
+    /**
+     * Submits pending items, in order, to the given executor service. Stops when {@code maxTasks} tasks have been submitted, when {@code itemsInFlight} reaches {@code maxItemsInFlight} or when the
+     * executor service rejects a task. Items that were not submitted remain pending. If the inbox has a {@code batchTaskFactory}, each task processes a batch of items, otherwise a single item.
+     *
+     * @param executor         the executor service to submit to
+     * @param itemsInFlight    the counter of submitted tasks that have not finished yet
+     * @param maxItemsInFlight the maximum value of {@code itemsInFlight}
+     * @param maxTasks         the maximum number of tasks to submit
+     * @return the number of tasks submitted
+     */
+    int submitPendingItems(ExecutorService executor, AtomicInteger itemsInFlight, int maxItemsInFlight, int maxTasks) {
+        int submitted = 0;
+        while (submitted < maxTasks) {
+            if (itemsInFlight.get() >= maxItemsInFlight) {
+                log.debug("Maximum of {} items in flight reached; keeping {} items pending", maxItemsInFlight, createdFilesAndDirectories.size() + batch.size());
+                break;
+            }
+            if (!fillBatch()) {
+                break;
+            }
+            if (!submit(batch, executor, itemsInFlight)) {
+                log.debug("Executor service rejected {} items; keeping {} items pending", batch.size(), createdFilesAndDirectories.size() + batch.size());
+                break;
+            }
+            batch.clear();
+            batchBytes = 0;
+            submitted++;
+        }
+        return submitted;
+    }
+
+    // Moves pending items, in order, to the batch. Returns true if the batch is ready to be submitted.
+    private boolean fillBatch() {
+        while (batch.size() < maxBatchSize && batchBytes < maxBatchBytes && !createdFilesAndDirectories.isEmpty()) {
+            var item = createdFilesAndDirectories.peek();
+            // An item may have been kept pending for a while, so check that it is still there
+            if (!Files.exists(item.path)) {
+                log.debug("Pending item {} no longer exists; skipping", item.path);
+                createdFilesAndDirectories.poll();
+                claimRetries.remove(item.path);
+                continue;
+            }
+            var location = item.path;
+            if (claims != null) {
+                try {
+                    location = claims.claim(item.path);
+                }
+                catch (NoSuchFileException e) {
+                    log.debug("Pending item {} was claimed by another node; skipping", item.path);
+                    createdFilesAndDirectories.poll();
+                    claimRetries.remove(item.path);
+                    continue;
+                }
+                catch (IOException e) {
+                    // E.g. an item with the same name that is still in the claim directory; this must not hold up the items behind it
+                    createdFilesAndDirectories.poll();
+                    claimFailed(item.path, e);
+                    continue;
+                }
+                claimRetries.remove(item.path);
+            }
+            createdFilesAndDirectories.poll();
+            if (batch.isEmpty()) {
+                batchStart = System.currentTimeMillis();
+            }
+            batch.add(new BatchItem(item.path, location));
+            if (maxBatchBytes != Long.MAX_VALUE) {
+                batchBytes += sizeOf(location);
+            }
+        }
+        return !batch.isEmpty() && (batch.size() >= maxBatchSize || batchBytes >= maxBatchBytes || System.currentTimeMillis() - batchStart >= batchLingerMillis);
+    }
+
+    private void claimFailed(Path item, IOException e) {
+        var retry = claimRetries.get(item);
+        if (retry == null) {
+            retry = new ClaimRetry(item);
+            claimRetries.put(item, retry);
+            log.error("Could not claim item {}; retrying with backoff", item, e);
+        }
+        else {
+            log.debug("Could not claim item {} after {} attempts: {}", item, retry.attempts + 1, e.getMessage());
+        }
+        retry.attempts++;
+        retry.pending = false;
+        retry.nextAttempt = System.currentTimeMillis() + Math.min((long) interval << Math.min(retry.attempts - 1, 16), MAX_CLAIM_RETRY_DELAY_MILLIS);
+    }
+
+    private static long sizeOf(Path item) {
+        try (var files = Files.walk(item)) {
+            return files.filter(Files::isRegularFile).mapToLong(file -> {
+                try {
+                    return Files.size(file);
+                }
+                catch (IOException e) {
+                    return 0;
+                }
+            }).sum();
+        }
+        catch (IOException | UncheckedIOException e) {
+            log.debug("Could not determine the size of {}: {}", item, e.getMessage());
+            return 0;
+        }
+    }
+
+    boolean hasPendingItems() {
+        return !createdFilesAndDirectories.isEmpty();
+    }
+
+    // The items are recorded in the journal by their path in the inbox, but processed at their current location, which differs if they were claimed
+    private boolean submit(List<BatchItem> items, ExecutorService executor, AtomicInteger itemsInFlight) {
+        var locations = items.stream().map(item -> item.location).collect(Collectors.toList());
+        log.debug("Processing created files: {}", locations);
+        var task = batchTaskFactory != null ? batchTaskFactory.createInboxTask(List.copyOf(locations)) : taskFactory.createInboxTask(locations.get(0));
+        var journaled = List.copyOf(items);
+        var lastModified = metrics == null ? null : locations.stream().mapToLong(Inbox::getLastModifiedMillis).toArray();
+        itemsInFlight.incrementAndGet();
+        try {
+            executor.submit(() -> {
+                try {
+                    record(journaled, InboxJournal.State.STARTED);
+                    task.run();
+                    record(journaled, InboxJournal.State.FINISHED);
+                    if (metrics != null) {
+                        metrics.itemsProcessed(journaled.size());
+                    }
+                }
+                catch (RuntimeException | Error e) {
+                    if (metrics != null) {
+                        metrics.itemsFailed(journaled.size());
+                    }
+                    throw e;
+                }
+                finally {
+                    itemsInFlight.decrementAndGet();
+                }
+            });
+            if (metrics != null) {
+                for (long modified : lastModified) {
+                    metrics.itemSubmitted(modified);
+                }
+            }
+            return true;
+        }
+        catch (RejectedExecutionException e) {
+            itemsInFlight.decrementAndGet();
+            return false;
+        }
+    }
+
+    private void record(List<BatchItem> items, InboxJournal.State state) {
+        // The journal may be closed by stop() while the task runs
+        var currentJournal = journal;
+        if (currentJournal != null) {
+            items.forEach(item -> currentJournal.record(item.path, state));
+        }
+    }
+
+    private static long getLastModifiedMillis(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toMillis();
+        }
         catch (IOException e) {
-            throw new RuntimeException("Error processing initial items in inbox", e);
+            return -1;
+        }
+    }
+
+    InboxMonitor createMonitor(DetectionMode detectionMode, int interval) throws IOException {
+        if (journalFile != null && journal == null) {
+            journal = new InboxJournal(journalFile, inbox);
         }
-        finally {
-            initialItemsProcessed = true;
-            log.debug("Initial items processed");
+        if (claims != null && !claimsOpened) {
+            claims.open();
+            claimsOpened = true;
         }
+        return new InboxMonitor(this, inbox, fileFilter, detectionMode, interval, reconciliationIntervalMillis, depth, scanParallelism);
     }
 
-    private void startFileAlterationMonitor() throws Exception {
-        FileAlterationObserver observer = FileAlterationObserver.builder()
-            .setRootEntry(inboxFileEntry)
-            .setFileFilter(fileFilter)
-            .get();
+    Path getInbox() {
+        return inbox;
+    }
 
-        observer.addListener(this);
-        monitor.addObserver(observer);
+    int getStartupGracePeriodMillis() {
+        return startupGracePeriodMillis;
+    }
 
+    private void startMonitor() throws IOException {
+        var newMonitor = createMonitor(detectionMode, interval);
         // Set a ThreadFactory that auto-restarts on RuntimeException (but not on Error)
-        monitor.setThreadFactory(new AutoRestartingThreadFactory("InboxMonitor"));
-        monitor.start();
+        newMonitor.start(new AutoRestartingThreadFactory("InboxMonitor", virtualThreads));
+        monitor = newMonitor;
+    }
+
+    private static final class ClaimRetry {
+        private final Path item;
+        private int attempts;
+        private long nextAttempt;
+        // Whether the item is among the pending items, waiting for its next attempt
+        private boolean pending;
+
+        private ClaimRetry(Path item) {
+            this.item = item;
+        }
+    }
+
+    private static final class BatchItem {
+        private final Path path;
+        private final Path location;
+
+        private BatchItem(Path path, Path location) {
+            this.path = path;
+            this.location = location;
+        }
+    }
+
+    private static final class PendingItem {
+        private final Path path;
+        private final Object key;
+        private final long sequence;
+
+        private PendingItem(Path path, Object key, long sequence) {
+            this.path = path;
+            this.key = key;
+            this.sequence = sequence;
+        }
     }
 
     /**
      * ThreadFactory that creates threads which restart the delegate Runnable when it crashes with a RuntimeException.
-     * Errors (like OutOfMemoryError) are not caught to avoid masking fatal problems.
+     * Errors (like OutOfMemoryError) are not caught to avoid masking fatal problems. The threads are virtual threads if requested and supported by the runtime.
      */
     static final class AutoRestartingThreadFactory implements ThreadFactory {
         private final String namePrefix;
         private final AtomicInteger threadCount = new AtomicInteger(1);
         private final long resetBackoffAfterMillis = 3_600_000; // 1 hour
+        private final ThreadFactory virtualThreadFactory;
 
         AutoRestartingThreadFactory(final String namePrefix) {
+            this(namePrefix, false);
+        }
+
+        AutoRestartingThreadFactory(final String namePrefix, final boolean virtual) {
             this.namePrefix = namePrefix;
+            this.virtualThreadFactory = virtual ? VirtualThreads.newThreadFactory(namePrefix) : null;
         }
 
         @Override
         public Thread newThread(final Runnable r) {
-            var t = new Thread(() -> {
+            Runnable restartingRunnable = () -> {
                 long backoffMillis = 500;
                 final long maxBackoffMillis = 30_000;
                 while (true) {
@@ -254,7 +736,11 @@ public class Inbox extends FileAlterationListenerAdaptor implements Managed {
                         // Loop to restart.
                     }
                 }
-            }, namePrefix + "-" + threadCount.getAndIncrement());
+            };
+            if (virtualThreadFactory != null) {
+                return virtualThreadFactory.newThread(restartingRunnable);
+            }
+            var t = new Thread(restartingRunnable, namePrefix + "-" + threadCount.getAndIncrement());
             t.setDaemon(true);
             return t;
         }
@@ -0,0 +1,219 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.inbox;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Lets several nodes share one inbox directory without processing an item twice.
+ * <p>
+ * Before an item is processed, the node claims it by moving it, with an atomic rename, from the inbox to its own directory {@code <claimDirectory>/<nodeId>}. Only one node can succeed; for the other
+ * nodes the item has disappeared. The task then processes the item at its new location. The claim directory must therefore be on the same file system as the inbox, but outside the inbox.
+ * <p>
+ * Each node holds a lease, the file {@code <claimDirectory>/<nodeId>.lease}, whose last modified time it updates every round. If a node has not renewed its lease for {@code leaseMillis}, the other
+ * nodes assume that it has crashed and move the items in its directory back into the inbox, where they are detected and claimed again. When a node starts, it does the same with the items that it
+ * had claimed but not finished before it was stopped. Items that are completely processed are expected to be moved out of the node's directory by their task.
+ * <p>
+ * An item is only processed twice if a node stops renewing its lease while it is still processing, e.g. because of a process pause longer than the lease. The lease should therefore be much longer
+ * than the polling interval, and than the clock difference between the nodes. Each node must have a unique node id.
+ */
+@Slf4j
+class InboxClaims {
+    private static final String LEASE_SUFFIX = ".lease";
+
+    private final Path inbox;
+    private final Path claimDirectory;
+    private final String nodeId;
+    private final Path nodeDirectory;
+    private final Path leaseFile;
+    private final long leaseMillis;
+    private final int depth;
+    private long lastRenewal;
+    private long lastExpiryCheck;
+
+    /**
+     * @param inbox          the inbox directory
+     * @param claimDirectory the directory that holds the claimed items and leases of all nodes
+     * @param nodeId         the unique id of this node
+     * @param leaseMillis    the time after which the claims of a node that has not renewed its lease are released
+     * @param depth          the depth of the items below the inbox directory
+     */
+    InboxClaims(Path inbox, Path claimDirectory, String nodeId, long leaseMillis, int depth) {
+        if (claimDirectory.toAbsolutePath().normalize().startsWith(inbox.toAbsolutePath().normalize())) {
+            throw new IllegalArgumentException("The claim directory " + claimDirectory + " must not be inside the inbox " + inbox);
+        }
+        this.inbox = inbox;
+        this.claimDirectory = claimDirectory;
+        this.nodeId = nodeId;
+        this.nodeDirectory = claimDirectory.resolve(nodeId);
+        this.leaseFile = claimDirectory.resolve(nodeId + LEASE_SUFFIX);
+        this.leaseMillis = leaseMillis;
+        this.depth = depth;
+    }
+
+    /**
+     * Takes the lease of this node and moves the items that this node claimed before it was stopped back into the inbox.
+     *
+     * @throws IOException if the claim directory could not be prepared
+     */
+    void open() throws IOException {
+        Files.createDirectories(nodeDirectory);
+        renewLease(System.currentTimeMillis());
+        int released = release(nodeDirectory);
+        if (released > 0) {
+            log.info("Moved {} unfinished items claimed by node {} back into inbox {}", released, nodeId, inbox);
+        }
+    }
+
+    /**
+     * Claims an item by moving it into the directory of this node.
+     *
+     * @param item the inbox item
+     * @return the location of the claimed item
+     * @throws NoSuchFileException if the item was claimed by another node
+     * @throws IOException         if the item could not be moved
+     */
+    Path claim(Path item) throws IOException {
+        var claimed = nodeDirectory.resolve(inbox.relativize(item));
+        // A rename may silently replace an existing file
+        if (Files.exists(claimed)) {
+            throw new FileAlreadyExistsException(claimed.toString(), null, "an item with the same name is already claimed by this node");
+        }
+        Files.createDirectories(claimed.getParent());
+        Files.move(item, claimed, StandardCopyOption.ATOMIC_MOVE);
+        return claimed;
+    }
+
+    /**
+     * Renews the lease of this node, if a third of the lease has passed, and releases the items of nodes whose lease has expired, if half of the lease has passed since the last check.
+     */
+    void maintain() {
+        long now = System.currentTimeMillis();
+        if (now - lastRenewal >= leaseMillis / 3) {
+            try {
+                renewLease(now);
+            }
+            catch (IOException e) {
+                log.error("Could not renew lease {} of node {}", leaseFile, nodeId, e);
+            }
+        }
+        if (now - lastExpiryCheck >= leaseMillis / 2) {
+            lastExpiryCheck = now;
+            try {
+                releaseExpiredClaims(now);
+            }
+            catch (IOException e) {
+                log.warn("Could not check the leases in {}: {}", claimDirectory, e.getMessage());
+            }
+        }
+    }
+
+    private void renewLease(long now) throws IOException {
+        try {
+            Files.setLastModifiedTime(leaseFile, FileTime.fromMillis(now));
+        }
+        catch (NoSuchFileException e) {
+            if (lastRenewal != 0) {
+                log.error("The lease of node {} was taken over by another node; items that are being processed may be processed twice", nodeId);
+            }
+            Files.createDirectories(nodeDirectory);
+            Files.write(leaseFile, new byte[0]);
+        }
+        lastRenewal = now;
+    }
+
+    private void releaseExpiredClaims(long now) throws IOException {
+        List<Path> leases;
+        try (var files = Files.list(claimDirectory)) {
+            leases = files.filter(f -> f.getFileName().toString().endsWith(LEASE_SUFFIX) && !f.equals(leaseFile)).collect(Collectors.toList());
+        }
+        for (var lease : leases) {
+            try {
+                long modified = Files.getLastModifiedTime(lease).toMillis();
+                if (now - modified < leaseMillis) {
+                    continue;
+                }
+                var name = lease.getFileName().toString();
+                var expiredNodeDirectory = claimDirectory.resolve(name.substring(0, name.length() - LEASE_SUFFIX.length()));
+                log.warn("Lease {} expired {} ms ago; moving the items claimed by that node back into inbox {}", lease, now - modified - leaseMillis, inbox);
+                release(expiredNodeDirectory);
+                deleteEmptyDirectories(expiredNodeDirectory);
+                Files.deleteIfExists(lease);
+            }
+            catch (NoSuchFileException e) {
+                // Released by another node in the meantime
+            }
+        }
+    }
+
+    // Moves the items in the given node directory back into the inbox
+    private int release(Path directory) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return 0;
+        }
+        List<Path> items;
+        try (var files = Files.walk(directory, depth)) {
+            items = files.filter(f -> directory.relativize(f).getNameCount() == depth && !f.equals(directory)).collect(Collectors.toList());
+        }
+        int released = 0;
+        for (var claimed : items) {
+            var item = inbox.resolve(directory.relativize(claimed));
+            try {
+                if (Files.exists(item)) {
+                    throw new FileAlreadyExistsException(item.toString());
+                }
+                Files.createDirectories(item.getParent());
+                Files.move(claimed, item, StandardCopyOption.ATOMIC_MOVE);
+                released++;
+            }
+            catch (NoSuchFileException e) {
+                // Released by another node in the meantime
+            }
+            catch (FileAlreadyExistsException e) {
+                log.error("Cannot move claimed item {} back into the inbox, because {} already exists", claimed, item);
+            }
+        }
+        return released;
+    }
+
+    private void deleteEmptyDirectories(Path directory) throws IOException {
+        List<Path> directories;
+        try (var files = Files.walk(directory)) {
+            directories = files.filter(Files::isDirectory).sorted(Comparator.reverseOrder()).collect(Collectors.toCollection(ArrayList::new));
+        }
+        for (var dir : directories) {
+            try {
+                Files.deleteIfExists(dir);
+            }
+            catch (DirectoryNotEmptyException e) {
+                log.debug("Not deleting {}, because it is not empty", dir);
+            }
+        }
+    }
+}
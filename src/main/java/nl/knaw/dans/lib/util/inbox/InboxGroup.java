@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.inbox;
+
+import io.dropwizard.lifecycle.Managed;
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <p>
+ * Manages a group of inboxes that share a single monitor thread and a single pool of worker threads. The inboxes are configured with {@link Inbox#builder()} as usual, but they must not be started
+ * themselves: the group takes care of detecting new items in all of them. The {@code interval} and {@code detectionMode} of the group apply to all inboxes; those of the individual inboxes, as well as
+ * their {@code executorService} and {@code maxItemsInFlight}, are ignored. Other settings, such as {@code depth} and {@code stableItemWindowMillis}, are taken from the individual inboxes.
+ * </p>
+ * <p>
+ * Each inbox is added with a weight. The pending items of the inboxes are submitted to the shared {@code executorService} with weighted round-robin scheduling: in each pass every inbox may submit
+ * up to its weight in tasks (items, or batches of items for inboxes with a {@code batchTaskFactory}), until the group's {@code maxItemsInFlight} is reached. An inbox that receives a flood of items
+ * can therefore not starve the other inboxes, as long as {@code maxItemsInFlight} is not much larger than the number of worker threads.
+ * </p>
+ * <p>
+ * Inboxes whose directory is not available yet are retried every {@code startupGracePeriodMillis} of that inbox, without holding up the other inboxes. Likewise, if monitoring an inbox fails, e.g.
+ * because its directory was removed, its monitor is stopped and restarted after {@code startupGracePeriodMillis}, while the other inboxes are monitored as usual. If no {@code executorService} is
+ * given, the group creates one with a thread per processor, and shuts it down when it is stopped.
+ * </p>
+ */
+@Slf4j
+public class InboxGroup implements Managed {
+    private final List<Member> members = new ArrayList<>();
+    @NonNull
+    private final ExecutorService executorService;
+    // Only an executor service that the group created itself is shut down when it stops
+    private final boolean ownsExecutorService;
+    private final int maxItemsInFlight;
+    private final int interval;
+    private final Inbox.DetectionMode detectionMode;
+
+    private final AtomicInteger itemsInFlight = new AtomicInteger();
+    private WatchService watchService;
+    private Thread thread;
+    private volatile boolean running;
+    private boolean restarted;
+    private int currentMember;
+    private int creditOfCurrentMember;
+
+    private static class Member {
+        private final Inbox inbox;
+        private final int weight;
+        private InboxMonitor monitor;
+        private long nextStartAttempt;
+
+        private Member(Inbox inbox, int weight) {
+            this.inbox = inbox;
+            this.weight = weight;
+        }
+    }
+
+    @Builder
+    private InboxGroup(Map<Inbox, Integer> inboxes, ExecutorService executorService, Integer maxItemsInFlight, int interval, Inbox.DetectionMode detectionMode) {
+        if (inboxes == null || inboxes.isEmpty()) {
+            throw new IllegalArgumentException("An inbox group must contain at least one inbox");
+        }
+        inboxes.forEach((inbox, weight) -> {
+            if (weight == null || weight < 1) {
+                throw new IllegalArgumentException("The weight of inbox " + inbox.getInbox() + " must be at least 1");
+            }
+            members.add(new Member(inbox, weight));
+        });
+        int processors = Runtime.getRuntime().availableProcessors();
+        this.ownsExecutorService = executorService == null;
+        this.executorService = executorService == null ? Executors.newFixedThreadPool(processors) : executorService;
+        this.maxItemsInFlight = maxItemsInFlight == null || maxItemsInFlight <= 0 ? processors : maxItemsInFlight;
+        this.interval = interval == 0 ? 1000 : interval;
+        this.detectionMode = detectionMode == null ? Inbox.DetectionMode.POLLING : detectionMode;
+        this.creditOfCurrentMember = members.get(0).weight;
+        members.forEach(member -> member.inbox.joinGroup(this.executorService));
+    }
+
+    public static class InboxGroupBuilder {
+
+        /**
+         * Adds an inbox to the group.
+         *
+         * @param inbox  the inbox
+         * @param weight the number of tasks the inbox may submit in its turn, at least 1
+         * @return this builder
+         */
+        public InboxGroupBuilder inbox(@NonNull Inbox inbox, int weight) {
+            if (inboxes == null) {
+                inboxes = new LinkedHashMap<>();
+            }
+            inboxes.put(inbox, weight);
+            return this;
+        }
+    }
+
+    @Override
+    public void start() throws Exception {
+        log.info("Starting inbox group with {} inboxes", members.size());
+        if (detectionMode == Inbox.DetectionMode.WATCH_SERVICE) {
+            watchService = members.get(0).inbox.getInbox().getFileSystem().newWatchService();
+        }
+        running = true;
+        thread = new Inbox.AutoRestartingThreadFactory("InboxGroupMonitor").newThread(this::run);
+        thread.start();
+    }
+
+    @Override
+    public void stop() throws Exception {
+        log.info("Stopping inbox group");
+        running = false;
+        if (watchService != null) {
+            watchService.close();
+        }
+        if (thread != null) {
+            thread.interrupt();
+            // A round in progress must not see the monitors and journals being closed
+            thread.join();
+        }
+        for (var member : members) {
+            if (member.monitor != null) {
+                member.monitor.stop();
+            }
+            member.inbox.closeJournal();
+        }
+        if (ownsExecutorService) {
+            executorService.shutdown();
+        }
+    }
+
+    private void run() {
+        if (restarted) {
+            // Events may have been lost while the thread crashed
+            members.stream().filter(member -> member.monitor != null).forEach(member -> member.monitor.requestReconciliation());
+        }
+        restarted = true;
+        try {
+            while (running) {
+                for (var member : members) {
+                    if (member.monitor == null) {
+                        startMonitor(member);
+                    }
+                    if (member.monitor != null) {
+                        detect(member);
+                    }
+                }
+                submitPendingItems();
+                awaitNextRound();
+            }
+        }
+        catch (ClosedWatchServiceException e) {
+            log.debug("Watch service for inbox group closed");
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.debug("Inbox group monitor interrupted");
+        }
+    }
+
+    // An error in one inbox, e.g. because its directory was removed, must not stop the monitoring of the other inboxes
+    private void detect(Member member) {
+        try {
+            member.monitor.detect();
+            member.inbox.preparePendingItems();
+        }
+        catch (ClosedWatchServiceException e) {
+            throw e;
+        }
+        catch (RuntimeException e) {
+            monitorFailed(member, e);
+        }
+    }
+
+    // Returns true if the key belongs to the inbox of the member, also if processing its events failed
+    private boolean processEvents(Member member, WatchKey key) {
+        try {
+            return member.monitor.processEvents(key);
+        }
+        catch (ClosedWatchServiceException e) {
+            throw e;
+        }
+        catch (RuntimeException e) {
+            monitorFailed(member, e);
+            return true;
+        }
+    }
+
+    private void monitorFailed(Member member, RuntimeException e) {
+        log.error("Error monitoring inbox {}; restarting its monitor in {} ms", member.inbox.getInbox(), member.inbox.getStartupGracePeriodMillis(), e);
+        try {
+            member.monitor.stop();
+        }
+        catch (IOException | RuntimeException stopError) {
+            log.warn("Error stopping monitor of inbox {}", member.inbox.getInbox(), stopError);
+        }
+        member.monitor = null;
+        member.nextStartAttempt = System.currentTimeMillis() + member.inbox.getStartupGracePeriodMillis();
+    }
+
+    private void startMonitor(Member member) {
+        if (System.currentTimeMillis() < member.nextStartAttempt) {
+            return;
+        }
+        if (member.inbox.isInboxAvailable()) {
+            try {
+                var monitor = member.inbox.createMonitor(detectionMode, interval);
+                if (watchService != null) {
+                    monitor.register(watchService);
+                }
+                member.monitor = monitor;
+                log.info("Monitoring inbox {}", member.inbox.getInbox());
+                return;
+            }
+            catch (IOException e) {
+                log.error("Failed to register inbox {}: {}. Retrying in {} ms", member.inbox.getInbox(), e.getMessage(), member.inbox.getStartupGracePeriodMillis());
+            }
+        }
+        member.nextStartAttempt = System.currentTimeMillis() + member.inbox.getStartupGracePeriodMillis();
+    }
+
+    // Weighted round-robin: each inbox in turn may submit up to its weight in items. The turn is carried over to the next round if the group runs out of capacity, so that no inbox is favored.
+    private void submitPendingItems() {
+        int idleTurns = 0;
+        while (idleTurns < members.size() && itemsInFlight.get() < maxItemsInFlight) {
+            var member = members.get(currentMember);
+            int submitted = member.inbox.submitPendingItems(executorService, itemsInFlight, maxItemsInFlight, creditOfCurrentMember);
+            creditOfCurrentMember -= submitted;
+            idleTurns = submitted > 0 ? 0 : idleTurns + 1;
+            if (creditOfCurrentMember > 0 && member.inbox.hasPendingItems() && submitted > 0 && itemsInFlight.get() >= maxItemsInFlight) {
+                // Out of capacity; continue this turn in the next round
+                return;
+            }
+            // An inbox that could not submit anything, e.g. because the executor service rejected its task, passes its turn, so that it cannot hold up the other inboxes
+            currentMember = (currentMember + 1) % members.size();
+            creditOfCurrentMember = members.get(currentMember).weight;
+        }
+    }
+
+    private void awaitNextRound() throws InterruptedException {
+        if (watchService == null) {
+            Thread.sleep(interval);
+            return;
+        }
+        WatchKey key = watchService.poll(interval, TimeUnit.MILLISECONDS);
+        while (key != null) {
+            for (var member : members) {
+                if (member.monitor != null && processEvents(member, key)) {
+                    break;
+                }
+            }
+            // Collect any further events that are already queued, without waiting
+            key = watchService.poll();
+        }
+    }
+}
@@ -0,0 +1,269 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.inbox;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * An append-only journal of the processing state of inbox items, so that an inbox does not have to resubmit items that were already processed when it is restarted.
+ * <p>
+ * For every item the journal records when it was accepted, when its task started and when its task finished. Each record also holds an identity of the item, so that a new item that happens to have
+ * the same name as a processed one is not mistaken for it. The identity consists of the file key of the item (e.g. the device and inode number), if the file system has file keys, and its creation
+ * time. The creation time is needed because file systems reuse inode numbers: a new item can get the inode of a processed item that was deleted. On Linux, Java versions before 22 do not read the
+ * creation time at all, whatever the file system, and report the last modification time instead. Therefore the identity is read again whenever a state is recorded, so that an item that was
+ * changed while it was being processed, e.g. by its task, is recognized by the identity it had when it finished. An item that is modified after its task has finished is processed again after a
+ * restart, rather than being skipped.
+ * <p>
+ * The journal is a memory-mapped file. Records are appended to the mapped buffer, so writing one does not require a system call, and they survive a crash of the process (though not necessarily of
+ * the operating system). Each record consists of a type byte, the length of the identity (2 bytes), the identity, the length of the name (2 bytes) and the name, with the identity and the name encoded in UTF-8. The end of the journal is marked by a zero type
+ * byte. When the number of records becomes much larger than the number of items, the journal is compacted: the current state of each item is written to a new file, leaving out finished items that
+ * are no longer present, which then replaces the old one.
+ */
+@Slf4j
+class InboxJournal {
+    enum State {
+        ACCEPTED,
+        STARTED,
+        FINISHED
+    }
+
+    private static final int INITIAL_SIZE = 1 << 20;
+    private static final int MIN_RECORDS_BEFORE_COMPACTION = 10_000;
+    private static final int MAX_NAME_LENGTH = Short.MAX_VALUE;
+
+    private final Path file;
+    private final Path inbox;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int records;
+
+    private static class Entry {
+        private State state;
+        private String identity;
+
+        private Entry(State state, String identity) {
+            this.state = state;
+            this.identity = identity;
+        }
+    }
+
+    /**
+     * Opens the journal, creating it if it does not exist, and replays its records.
+     *
+     * @param file  the journal file
+     * @param inbox the inbox directory; items are recorded by their path relative to it
+     * @throws IOException if the journal could not be opened
+     */
+    InboxJournal(Path file, Path inbox) throws IOException {
+        this.file = file;
+        this.inbox = inbox;
+        open();
+        replay();
+        log.info("Replayed inbox journal {}: {} items, of which {} unfinished", file, entries.size(), entries.values().stream().filter(e -> e.state != State.FINISHED).count());
+    }
+
+    /**
+     * Returns true if the item was finished according to the journal and has not been replaced since.
+     *
+     * @param item the inbox item
+     * @return whether the item was finished
+     */
+    synchronized boolean isFinished(Path item) {
+        var entry = entries.get(nameOf(item));
+        return entry != null && entry.state == State.FINISHED && entry.identity.equals(identityOf(item));
+    }
+
+    synchronized void record(Path item, State state) {
+        if (channel == null) {
+            log.debug("Inbox journal {} is closed; not recording {} as {}", file, item, state);
+            return;
+        }
+        var name = nameOf(item);
+        var entry = entries.get(name);
+        // The identity is read again for every record, as it may change while the item is processed (see the class comment)
+        var identity = identityOf(item);
+        if (identity.isEmpty() && entry != null) {
+            // The item was moved or deleted, e.g. by its task; it is still the item that was accepted
+            identity = entry.identity;
+        }
+        if (entry == null) {
+            entries.put(name, new Entry(state, identity));
+        }
+        else {
+            entry.state = state;
+            entry.identity = identity;
+        }
+        append(state, identity, name);
+        if (records > MIN_RECORDS_BEFORE_COMPACTION && records > 2 * entries.size()) {
+            compact(n -> entries.get(n).state != State.FINISHED || Files.exists(inbox.resolve(n)));
+        }
+    }
+
+    synchronized void close() {
+        if (channel == null) {
+            return;
+        }
+        buffer.force();
+        try {
+            channel.close();
+        }
+        catch (IOException e) {
+            log.warn("Error closing inbox journal {}", file, e);
+        }
+        channel = null;
+    }
+
+    /**
+     * Rewrites the journal with only the current state of the items for which {@code keep} returns true.
+     *
+     * @param keep selects the names of the items to keep
+     */
+    synchronized void compact(Predicate<String> keep) {
+        log.debug("Compacting inbox journal {} with {} records for {} items", file, records, entries.size());
+        entries.keySet().removeIf(keep.negate());
+        var tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            buffer.force();
+            channel.close();
+            Files.deleteIfExists(tempFile);
+            channel = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_SIZE);
+            records = 0;
+            entries.forEach((name, entry) -> append(entry.state, entry.identity, name));
+            buffer.force();
+            // The channel remains valid after the move, so we can continue appending to it
+            Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Error compacting inbox journal " + file, e);
+        }
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(INITIAL_SIZE, channel.size()));
+    }
+
+    private void replay() {
+        int start = 0;
+        try {
+            while (buffer.remaining() > 0 && buffer.get(buffer.position()) != 0) {
+                start = buffer.position();
+                var state = State.values()[buffer.get() - 1];
+                var identity = readString();
+                var name = identity == null ? null : readString();
+                if (name == null) {
+                    buffer.position(start);
+                    break;
+                }
+                var entry = entries.get(name);
+                if (entry == null) {
+                    entries.put(name, new Entry(state, identity));
+                }
+                else {
+                    entry.state = state;
+                    entry.identity = identity;
+                }
+                records++;
+            }
+        }
+        catch (RuntimeException e) {
+            // Should not happen, as the type byte of a record is written last, but do not let a damaged journal prevent the inbox from starting
+            log.warn("Inbox journal {} is damaged after {} records; ignoring the rest", file, records);
+            buffer.position(start);
+        }
+    }
+
+    private String readString() {
+        int length = buffer.getShort();
+        if (length < 0 || length > buffer.remaining()) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private void append(State state, String identity, String name) {
+        byte[] identityBytes = identity.getBytes(StandardCharsets.UTF_8);
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > MAX_NAME_LENGTH || identityBytes.length > MAX_NAME_LENGTH) {
+            throw new IllegalArgumentException("Name too long for inbox journal: " + name);
+        }
+        // Room for the record and the end marker
+        int length = 1 + Short.BYTES + identityBytes.length + Short.BYTES + bytes.length + 1;
+        if (buffer.remaining() < length) {
+            grow(length);
+        }
+        // Write the type byte last, so that a record that was only partly written when the process died is read as the end of the journal
+        int start = buffer.position();
+        buffer.position(start + 1);
+        buffer.putShort((short) identityBytes.length);
+        buffer.put(identityBytes);
+        buffer.putShort((short) bytes.length);
+        buffer.put(bytes);
+        buffer.put(buffer.position(), (byte) 0);
+        buffer.put(start, (byte) (state.ordinal() + 1));
+        records++;
+    }
+
+    private void grow(int needed) {
+        int position = buffer.position();
+        long newSize = Math.max((long) buffer.capacity() * 2, position + needed);
+        if (newSize > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Inbox journal " + file + " is too large");
+        }
+        try {
+            buffer.force();
+            buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newSize);
+            buffer.position(position);
+        }
+        catch (IOException e) {
+            throw new UncheckedIOException("Error growing inbox journal " + file, e);
+        }
+    }
+
+    private String nameOf(Path item) {
+        return inbox.relativize(item).toString();
+    }
+
+    private String identityOf(Path item) {
+        try {
+            var attributes = Files.readAttributes(item, BasicFileAttributes.class);
+            var creationTime = attributes.creationTime().toInstant().toString();
+            return attributes.fileKey() != null ? attributes.fileKey() + "@" + creationTime : creationTime;
+        }
+        catch (IOException e) {
+            // The item is gone; it cannot be confused with anything
+            return "";
+        }
+    }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.inbox;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The metrics of an {@link Inbox}. All metric names start with the given prefix, which must not be used by another inbox registered with the same registry:
+ * <ul>
+ *     <li>{@code detection-lag}: a timer of the time between the last modification of an item and its submission to the executor service;</li>
+ *     <li>{@code pending}: a gauge of the number of items that are ready to be processed but have not been submitted yet, including the items of a batch that is still being filled;</li>
+ *     <li>{@code unstable}: a gauge of the number of items that are held back until they are stable, only if the inbox waits for stable items;</li>
+ *     <li>{@code executor-queue}: a gauge of the number of tasks waiting in the queue of the executor service, only if it is a {@link ThreadPoolExecutor}; for an inbox in an
+ *     {@link InboxGroup} this is the executor service of the group, which is shared by all its inboxes;</li>
+ *     <li>{@code detected}, {@code submitted}, {@code processed} and {@code failed}: meters of the items detected, submitted to the executor service, processed successfully and processed with
+ *     an exception;</li>
+ *     <li>{@code round-duration}: a histogram of the time in milliseconds it takes to detect the new items in a round.</li>
+ * </ul>
+ */
+class InboxMetrics {
+    private final MetricRegistry registry;
+    private final String prefix;
+    private final Timer detectionLag;
+    private final Meter detected;
+    private final Meter submitted;
+    private final Meter processed;
+    private final Meter failed;
+    private final Histogram roundDuration;
+
+    /**
+     * @param registry        the registry to register the metrics with
+     * @param prefix          the prefix of the metric names
+     * @param pending         the number of items that are ready to be processed but have not been submitted yet
+     * @param unstable        the number of items that are not stable yet, or null if the inbox does not wait for stable items
+     * @param executorService the executor service of the inbox
+     * @throws IllegalArgumentException if metrics with the given prefix are already registered
+     */
+    InboxMetrics(MetricRegistry registry, String prefix, Gauge<Integer> pending, Gauge<Integer> unstable, ExecutorService executorService) {
+        // The meters and timers would silently be shared with the other inbox, so check before registering any of them
+        if (registry.getNames().contains(MetricRegistry.name(prefix, "pending"))) {
+            throw new IllegalArgumentException("Inbox metrics with prefix " + prefix + " are already registered; configure a distinct metricsPrefix for each inbox");
+        }
+        this.registry = registry;
+        this.prefix = prefix;
+        detectionLag = registry.timer(MetricRegistry.name(prefix, "detection-lag"));
+        detected = registry.meter(MetricRegistry.name(prefix, "detected"));
+        submitted = registry.meter(MetricRegistry.name(prefix, "submitted"));
+        processed = registry.meter(MetricRegistry.name(prefix, "processed"));
+        failed = registry.meter(MetricRegistry.name(prefix, "failed"));
+        roundDuration = registry.histogram(MetricRegistry.name(prefix, "round-duration"));
+        registry.register(MetricRegistry.name(prefix, "pending"), pending);
+        if (unstable != null) {
+            registry.register(MetricRegistry.name(prefix, "unstable"), unstable);
+        }
+        registerExecutorQueue(executorService);
+    }
+
+    /**
+     * Replaces the {@code executor-queue} gauge with one for the given executor service, e.g. when the inbox is added to an {@link InboxGroup}.
+     *
+     * @param executorService the executor service that runs the tasks of the inbox
+     */
+    void executorServiceChanged(ExecutorService executorService) {
+        registry.remove(MetricRegistry.name(prefix, "executor-queue"));
+        registerExecutorQueue(executorService);
+    }
+
+    private void registerExecutorQueue(ExecutorService executorService) {
+        if (executorService instanceof ThreadPoolExecutor) {
+            var queue = ((ThreadPoolExecutor) executorService).getQueue();
+            registry.register(MetricRegistry.name(prefix, "executor-queue"), (Gauge<Integer>) queue::size);
+        }
+    }
+
+    void itemDetected() {
+        detected.mark();
+    }
+
+    /**
+     * @param lastModifiedMillis the last modified time of the item, or -1 if it is unknown
+     */
+    void itemSubmitted(long lastModifiedMillis) {
+        submitted.mark();
+        if (lastModifiedMillis >= 0) {
+            detectionLag.update(Math.max(0, System.currentTimeMillis() - lastModifiedMillis), TimeUnit.MILLISECONDS);
+        }
+    }
+
+    void itemsProcessed(int count) {
+        processed.mark(count);
+    }
+
+    void itemsFailed(int count) {
+        failed.mark(count);
+    }
+
+    void roundCompleted(long durationNanos) {
+        roundDuration.update(TimeUnit.NANOSECONDS.toMillis(durationNanos));
+    }
+}
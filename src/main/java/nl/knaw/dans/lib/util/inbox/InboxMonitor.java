@@ -0,0 +1,493 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.inbox;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.filefilter.IOFileFilter;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Detects new items in an inbox directory and reports them to the inbox in rounds.
+ * <p>
+ * The items of an inbox are the files and directories exactly {@code depth} levels below the inbox directory. The directories at the levels in between are called shards; with the default depth of 1
+ * the inbox directory itself is the only shard. For every shard the monitor keeps a {@link DirectorySnapshot} of its children and the last modified time of the directory. A round only lists the
+ * shards whose last modified time has changed (or that were modified so recently that a change within the time resolution of the file system cannot be ruled out), so a large inbox that is sharded
+ * over many directories costs one {@code stat} per shard per round. If {@code scanParallelism} is larger than 1, the shards are checked and listed in parallel.
+ * <p>
+ * In {@link Inbox.DetectionMode#POLLING} mode the shards are checked every round. In {@link Inbox.DetectionMode#WATCH_SERVICE} mode every shard is registered with a {@link WatchService}, and the
+ * events received since the previous round are reported instead. Because a watch service may drop events (e.g. when its queue overflows), all shards are still listed every
+ * {@code reconciliationIntervalMillis} milliseconds and whenever an overflow is reported. In both modes the first round lists all shards, which reports the items that were already present in the
+ * inbox.
+ * <p>
+ * New items are only reported if the file filter accepts them. As the snapshots only report changes to the names in a shard, an item that is rejected is kept aside and passed to the filter again
+ * when its shard has changed and at every reconciliation, so that e.g. a directory that is only accepted once a certain file has been written to it is picked up. At most
+ * {@value #MAX_REJECTED_ITEMS} rejected items are kept aside; further rejected items are forgotten by the snapshot of their shard, so that the next listing of the shard reports them again.
+ * <p>
+ * The monitor can run on its own thread (see {@link #start(ThreadFactory)}), or be driven by an {@link InboxGroup}, which calls {@link #detect()} and {@link #processEvents(WatchKey)} from a thread
+ * that it shares with other inboxes.
+ */
+@Slf4j
+class InboxMonitor implements Runnable {
+    // Directories modified less than this long ago are listed again, as a second change may have gotten the same last modified time
+    private static final long MODIFIED_TIME_RESOLUTION_MILLIS = 2000;
+    static final int MAX_REJECTED_ITEMS = 10_000;
+
+    private final Inbox inbox;
+    private final Path inboxDir;
+    private final IOFileFilter fileFilter;
+    private final Inbox.DetectionMode detectionMode;
+    private final long roundIntervalMillis;
+    private final long reconciliationIntervalMillis;
+    private final int depth;
+    private final ExecutorService scanExecutor;
+
+    private final Shard root;
+    private final Map<Path, Shard> shards = new HashMap<>();
+    private final Map<WatchKey, Shard> shardsByKey = new HashMap<>();
+    private final Set<Path> createdItems = new LinkedHashSet<>();
+    // Rejected items by the directory of their shard
+    private final Map<Path, Set<Path>> rejectedItems = new HashMap<>();
+    private int rejectedItemCount;
+    // Shards whose listing changed since the previous round
+    private final Set<Path> changedShards = new HashSet<>();
+    private WatchService watchService;
+    private boolean ownsWatchService;
+    private Thread thread;
+    private boolean reconciliationNeeded = true;
+    private long lastReconciliation;
+    private volatile boolean running;
+
+    private static class Shard {
+        private final Path dir;
+        private final int level;
+        private final DirectorySnapshot snapshot;
+        private long lastModified = -1;
+        private boolean changed;
+        private WatchKey key;
+
+        // Results of the last listing
+        private final List<Path> created = new ArrayList<>();
+        private final List<String> removed = new ArrayList<>();
+        private boolean gone;
+        private IOException error;
+
+        private Shard(Path dir, int level) {
+            this.dir = dir;
+            this.level = level;
+            this.snapshot = new DirectorySnapshot(dir);
+        }
+
+        // Lists the directory if it was changed since the last listing, or if force is true
+        private void refresh(boolean force, long now) {
+            try {
+                long modified = Files.getLastModifiedTime(dir).toMillis();
+                if (!force && modified == lastModified && now - modified > MODIFIED_TIME_RESOLUTION_MILLIS) {
+                    return;
+                }
+                // Record the time before listing, so that changes made during the listing are picked up next time
+                changed = modified != lastModified;
+                lastModified = modified;
+                snapshot.scan(created::add, removed::add);
+            }
+            catch (NoSuchFileException e) {
+                gone = true;
+            }
+            catch (IOException e) {
+                lastModified = -1;
+                error = e;
+            }
+        }
+    }
+
+    InboxMonitor(Inbox inbox, Path inboxDir, IOFileFilter fileFilter, Inbox.DetectionMode detectionMode, long roundIntervalMillis, long reconciliationIntervalMillis, int depth,
+        int scanParallelism) {
+        this.inbox = inbox;
+        this.inboxDir = inboxDir;
+        this.fileFilter = fileFilter;
+        this.detectionMode = detectionMode;
+        this.roundIntervalMillis = roundIntervalMillis;
+        this.reconciliationIntervalMillis = reconciliationIntervalMillis;
+        this.depth = depth;
+        this.scanExecutor = scanParallelism > 1 ? Executors.newFixedThreadPool(scanParallelism, new ScanThreadFactory()) : null;
+        this.root = new Shard(inboxDir, 0);
+        this.shards.put(inboxDir, root);
+    }
+
+    /**
+     * Starts the monitor on a thread created by the given factory. In watch service mode the inbox directory is first registered with a new watch service.
+     *
+     * @param threadFactory the factory for the monitor thread
+     * @throws IOException if the directory could not be registered
+     */
+    void start(ThreadFactory threadFactory) throws IOException {
+        if (detectionMode == Inbox.DetectionMode.WATCH_SERVICE) {
+            var newWatchService = inboxDir.getFileSystem().newWatchService();
+            try {
+                register(newWatchService);
+            }
+            catch (IOException e) {
+                newWatchService.close();
+                throw e;
+            }
+            ownsWatchService = true;
+        }
+        running = true;
+        thread = threadFactory.newThread(this);
+        thread.start();
+    }
+
+    void stop() throws IOException {
+        running = false;
+        if (watchService != null && ownsWatchService) {
+            watchService.close();
+        }
+        else {
+            // A shared watch service stays open; registering the directories again must give new keys, not these keys that may never be reset
+            shardsByKey.keySet().forEach(WatchKey::cancel);
+            shardsByKey.clear();
+        }
+        if (thread != null) {
+            thread.interrupt();
+        }
+        if (scanExecutor != null) {
+            scanExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * Registers the inbox directory with the given watch service. Shards that are discovered later are registered with the same watch service. From then on, the events of the watch service must be
+     * passed to {@link #processEvents(WatchKey)}.
+     *
+     * @param watchService the watch service
+     * @throws IOException if the directory could not be registered
+     */
+    void register(WatchService watchService) throws IOException {
+        this.watchService = watchService;
+        watch(root);
+    }
+
+    @Override
+    public void run() {
+        // If the thread was restarted after a crash, events may have been lost
+        reconciliationNeeded = true;
+        try {
+            while (running) {
+                detect();
+                inbox.endRound();
+                if (watchService == null) {
+                    Thread.sleep(roundIntervalMillis);
+                }
+                else {
+                    WatchKey key = watchService.poll(roundIntervalMillis, TimeUnit.MILLISECONDS);
+                    while (key != null) {
+                        processEvents(key);
+                        // Collect any further events that are already queued, without waiting
+                        key = watchService.poll();
+                    }
+                }
+            }
+        }
+        catch (ClosedWatchServiceException e) {
+            log.debug("Watch service for inbox {} closed", inboxDir);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.debug("Monitor for inbox {} interrupted", inboxDir);
+        }
+    }
+
+    /**
+     * Starts a round of the inbox and reports the items that were created since the previous round. If the directory is not watched, the shards that have changed are listed first. If a
+     * reconciliation is due, all shards are listed.
+     */
+    void detect() {
+        inbox.beginRound();
+        boolean reconcile = reconciliationNeeded || System.currentTimeMillis() - lastReconciliation >= reconciliationIntervalMillis;
+        if (watchService == null || reconcile) {
+            refresh(new ArrayList<>(shards.values()), reconcile);
+            if (reconcile) {
+                reconciliationNeeded = false;
+                lastReconciliation = System.currentTimeMillis();
+            }
+        }
+        recheckRejectedItems(reconcile);
+        for (Path item : createdItems) {
+            if (fileFilter.accept(item.toFile())) {
+                inbox.itemDetected(item);
+            }
+            else {
+                rejected(item);
+            }
+        }
+        createdItems.clear();
+    }
+
+    // Passes the rejected items of the changed shards, or of all shards, to the filter again
+    private void recheckRejectedItems(boolean all) {
+        var shardDirs = all ? new ArrayList<>(rejectedItems.keySet()) : new ArrayList<>(changedShards);
+        changedShards.clear();
+        for (var shardDir : shardDirs) {
+            var items = rejectedItems.remove(shardDir);
+            if (items != null) {
+                rejectedItemCount -= items.size();
+                createdItems.addAll(items);
+            }
+        }
+    }
+
+    private void rejected(Path item) {
+        var shardDir = item.getParent();
+        if (rejectedItemCount >= MAX_REJECTED_ITEMS) {
+            forget(item);
+            return;
+        }
+        if (rejectedItems.computeIfAbsent(shardDir, dir -> new LinkedHashSet<>()).add(item)) {
+            rejectedItemCount++;
+        }
+    }
+
+    /**
+     * Forgets an item that was reported, so that the next listing of its shard reports it again. A listing of a shard that has not changed only takes place at a reconciliation.
+     *
+     * @param item the item
+     */
+    void forget(Path item) {
+        var shard = shards.get(item.getParent());
+        if (shard != null) {
+            shard.snapshot.remove(item.getFileName().toString());
+        }
+    }
+
+    private void forgetRejectedItem(Path item) {
+        var items = rejectedItems.get(item.getParent());
+        if (items != null && items.remove(item)) {
+            rejectedItemCount--;
+            if (items.isEmpty()) {
+                rejectedItems.remove(item.getParent());
+            }
+        }
+    }
+
+    /**
+     * Processes the pending events of a watch key and resets the key, if the key belongs to one of the shards of this inbox.
+     *
+     * @param key the watch key
+     * @return true if the key belongs to this inbox
+     */
+    boolean processEvents(WatchKey key) {
+        var shard = shardsByKey.get(key);
+        if (shard == null) {
+            return false;
+        }
+        var newShards = new ArrayList<Shard>();
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                log.debug("Watch service for inbox {} overflowed; scheduling reconciliation", inboxDir);
+                reconciliationNeeded = true;
+                continue;
+            }
+            changedShards.add(shard.dir);
+            var name = event.context().toString();
+            if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                if (shard.snapshot.add(name)) {
+                    childCreated(shard, shard.dir.resolve(name), newShards);
+                }
+            }
+            else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+                shard.snapshot.remove(name);
+                childRemoved(shard, shard.dir.resolve(name));
+            }
+        }
+        if (!key.reset()) {
+            if (shard == root) {
+                throw new IllegalStateException("Inbox directory " + inboxDir + " can no longer be watched");
+            }
+            removeShard(shard);
+        }
+        // New shards may already contain items that were created before they were registered
+        refresh(newShards, true);
+        return true;
+    }
+
+    void requestReconciliation() {
+        reconciliationNeeded = true;
+    }
+
+    // Refreshes the given shards, and then any shards discovered while doing so
+    private void refresh(List<Shard> shardsToRefresh, boolean force) {
+        long now = System.currentTimeMillis();
+        while (!shardsToRefresh.isEmpty()) {
+            refreshAll(shardsToRefresh, force, now);
+            var newShards = new ArrayList<Shard>();
+            for (var shard : shardsToRefresh) {
+                processRefreshResult(shard, newShards);
+            }
+            shardsToRefresh = newShards;
+            // Shards discovered during this round have never been listed
+            force = true;
+        }
+    }
+
+    private void refreshAll(List<Shard> shardsToRefresh, boolean force, long now) {
+        if (scanExecutor == null || shardsToRefresh.size() == 1) {
+            shardsToRefresh.forEach(shard -> shard.refresh(force, now));
+            return;
+        }
+        var tasks = new ArrayList<Callable<Void>>(shardsToRefresh.size());
+        for (var shard : shardsToRefresh) {
+            tasks.add(() -> {
+                shard.refresh(force, now);
+                return null;
+            });
+        }
+        try {
+            scanExecutor.invokeAll(tasks);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void processRefreshResult(Shard shard, List<Shard> newShards) {
+        if (shard.gone) {
+            if (shard == root) {
+                throw new UncheckedIOException("Inbox directory " + inboxDir + " no longer exists", new NoSuchFileException(inboxDir.toString()));
+            }
+            removeShard(shard);
+            return;
+        }
+        if (shard.error != null) {
+            var error = shard.error;
+            shard.error = null;
+            if (shard == root) {
+                throw new UncheckedIOException("Error listing inbox " + inboxDir, error);
+            }
+            log.warn("Error listing {} in inbox {}; retrying in the next round: {}", shard.dir, inboxDir, error.getMessage());
+            return;
+        }
+        if (shard.changed || !shard.created.isEmpty() || !shard.removed.isEmpty()) {
+            changedShards.add(shard.dir);
+            shard.changed = false;
+        }
+        for (var name : shard.removed) {
+            childRemoved(shard, shard.dir.resolve(name));
+        }
+        for (var child : shard.created) {
+            childCreated(shard, child, newShards);
+        }
+        shard.removed.clear();
+        shard.created.clear();
+    }
+
+    private void childCreated(Shard parent, Path child, List<Shard> newShards) {
+        if (parent.level + 1 == depth) {
+            createdItems.add(child);
+        }
+        else if (Files.isDirectory(child)) {
+            var shard = new Shard(child, parent.level + 1);
+            shards.put(child, shard);
+            if (watchService != null) {
+                try {
+                    watch(shard);
+                }
+                catch (IOException e) {
+                    log.warn("Could not watch {} in inbox {}; it will only be checked during reconciliation: {}", child, inboxDir, e.getMessage());
+                }
+            }
+            newShards.add(shard);
+        }
+    }
+
+    private void childRemoved(Shard parent, Path child) {
+        if (parent.level + 1 == depth) {
+            createdItems.remove(child);
+            forgetRejectedItem(child);
+        }
+        else {
+            var shard = shards.get(child);
+            if (shard != null) {
+                removeShard(shard);
+            }
+        }
+    }
+
+    private void removeShard(Shard shard) {
+        log.debug("Directory {} was removed from inbox {}", shard.dir, inboxDir);
+        var descendants = new ArrayList<Shard>();
+        for (var candidate : shards.values()) {
+            if (candidate.dir.startsWith(shard.dir)) {
+                descendants.add(candidate);
+            }
+        }
+        for (var descendant : descendants) {
+            shards.remove(descendant.dir);
+            if (descendant.key != null) {
+                shardsByKey.remove(descendant.key);
+                descendant.key.cancel();
+            }
+        }
+        createdItems.removeIf(item -> item.startsWith(shard.dir));
+        var removedShardDirs = new ArrayList<Path>();
+        for (var shardDir : rejectedItems.keySet()) {
+            if (shardDir.startsWith(shard.dir)) {
+                removedShardDirs.add(shardDir);
+            }
+        }
+        for (var shardDir : removedShardDirs) {
+            rejectedItemCount -= rejectedItems.remove(shardDir).size();
+        }
+        changedShards.removeIf(shardDir -> shardDir.startsWith(shard.dir));
+    }
+
+    private void watch(Shard shard) throws IOException {
+        shard.key = shard.dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_DELETE);
+        shardsByKey.put(shard.key, shard);
+    }
+
+    private static class ScanThreadFactory implements ThreadFactory {
+        private final AtomicInteger threadCount = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable r) {
+            var t = new Thread(r, "InboxScanner-" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        }
+    }
+}
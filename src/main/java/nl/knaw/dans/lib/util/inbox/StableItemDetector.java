@@ -0,0 +1,163 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.inbox;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Holds back new inbox items until they are no longer being written to. An item is released when a marker file for it appears, or when it has not changed for a given window.
+ * <p>
+ * For a directory item the marker is a file with the marker name inside the directory; for a file item it is a sibling file whose name is the name of the item followed by the marker name (e.g.
+ * {@code bag.zip.ready} for marker {@code .ready}).
+ * <p>
+ * To detect changes, the size and last modified time of the item itself are read every round. For a directory these only change when direct children are added or removed, so once they have been
+ * stable for the window, the directory tree is walked to compute its total size and latest modification time. The directory is released when that deep signature is still the same one window
+ * later. Large directories are therefore walked at most once per window, not every round.
+ */
+@Slf4j
+class StableItemDetector {
+    private final long windowMillis;
+    private final String marker;
+    private final Map<Path, ItemState> items = new LinkedHashMap<>();
+
+    private static class ItemState {
+        private long size = -1;
+        private long lastModified = -1;
+        private long treeSize = -1;
+        private long treeLastModified = -1;
+        private long stableSince;
+    }
+
+    /**
+     * @param windowMillis the time an item must be unchanged before it is released, or 0 to only release items when their marker appears
+     * @param marker       the name of the marker file, or null to only release items that have not changed for the window
+     */
+    StableItemDetector(long windowMillis, String marker) {
+        this.windowMillis = windowMillis;
+        this.marker = marker;
+    }
+
+    void add(Path item) {
+        items.putIfAbsent(item, new ItemState());
+    }
+
+    int size() {
+        return items.size();
+    }
+
+    /**
+     * Checks all tracked items and passes the ones that have become stable to {@code onStable}. Items that no longer exist are dropped.
+     *
+     * @param onStable receives the stable items
+     */
+    void releaseStableItems(Consumer<Path> onStable) {
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<Path, ItemState>> iterator = items.entrySet().iterator();
+        while (iterator.hasNext()) {
+            var entry = iterator.next();
+            try {
+                if (isStable(entry.getKey(), entry.getValue(), now)) {
+                    log.debug("Inbox item {} is stable", entry.getKey());
+                    iterator.remove();
+                    onStable.accept(entry.getKey());
+                }
+            }
+            catch (NoSuchFileException e) {
+                log.debug("Inbox item {} disappeared before it became stable", entry.getKey());
+                iterator.remove();
+            }
+            catch (IOException e) {
+                log.warn("Could not check whether inbox item {} is stable: {}", entry.getKey(), e.getMessage());
+            }
+        }
+    }
+
+    private boolean isStable(Path item, ItemState state, long now) throws IOException {
+        var attributes = Files.readAttributes(item, BasicFileAttributes.class);
+        if (marker != null && Files.exists(markerFor(item, attributes.isDirectory()))) {
+            return true;
+        }
+        if (windowMillis <= 0) {
+            return false;
+        }
+        long lastModified = attributes.lastModifiedTime().toMillis();
+        if (attributes.size() != state.size || lastModified != state.lastModified) {
+            state.size = attributes.size();
+            state.lastModified = lastModified;
+            state.treeSize = -1;
+            state.stableSince = now;
+            return false;
+        }
+        if (now - state.stableSince < windowMillis) {
+            return false;
+        }
+        if (!attributes.isDirectory()) {
+            return true;
+        }
+        long[] tree = walk(item);
+        if (tree[0] != state.treeSize || tree[1] != state.treeLastModified) {
+            // Either the first deep check or something changed deeper in the tree; check again after another window
+            state.treeSize = tree[0];
+            state.treeLastModified = tree[1];
+            state.stableSince = now;
+            return false;
+        }
+        return true;
+    }
+
+    private Path markerFor(Path item, boolean isDirectory) {
+        return isDirectory ? item.resolve(marker) : item.resolveSibling(item.getFileName() + marker);
+    }
+
+    // Returns the total size and latest modification time of all files and directories in the tree
+    private long[] walk(Path directory) throws IOException {
+        long[] result = new long[2];
+        Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                result[1] = Math.max(result[1], attrs.lastModifiedTime().toMillis());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                result[0] += attrs.size();
+                result[1] = Math.max(result[1], attrs.lastModifiedTime().toMillis());
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+                // Files may be moved around while the item is being written; that will show up as a change in the next check
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return result;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.inbox;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates virtual threads if the Java runtime supports them (Java 21 or later), and daemon platform threads otherwise. The library is compiled for Java 17, so the virtual thread API is looked up
+ * with reflection.
+ */
+@Slf4j
+final class VirtualThreads {
+    private static final Method OF_VIRTUAL = findMethod(Thread.class, "ofVirtual");
+    private static final Method NAME = findMethod(builderClass(), "name", String.class, long.class);
+    private static final Method FACTORY = findMethod(builderClass(), "factory");
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR = findMethod(Executors.class, "newThreadPerTaskExecutor", ThreadFactory.class);
+
+    private VirtualThreads() {
+    }
+
+    static boolean isAvailable() {
+        return OF_VIRTUAL != null && NAME != null && FACTORY != null;
+    }
+
+    /**
+     * Returns a factory for threads named {@code prefix-1}, {@code prefix-2}, etc. The threads are virtual if the runtime supports them, and daemon platform threads otherwise.
+     *
+     * @param prefix the prefix of the thread names
+     * @return the thread factory
+     */
+    static ThreadFactory newThreadFactory(String prefix) {
+        if (isAvailable()) {
+            try {
+                return (ThreadFactory) FACTORY.invoke(NAME.invoke(OF_VIRTUAL.invoke(null), prefix + "-", 1L));
+            }
+            catch (ReflectiveOperationException e) {
+                log.warn("Could not create virtual threads; using platform threads instead", e);
+            }
+        }
+        else {
+            log.warn("Virtual threads are not supported by Java {}; using platform threads instead", Runtime.version().feature());
+        }
+        var threadCount = new AtomicInteger(1);
+        return r -> {
+            var t = new Thread(r, prefix + "-" + threadCount.getAndIncrement());
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * Returns an executor service that starts a new virtual thread for every task. If virtual threads are not supported, it returns a cached thread pool of daemon platform threads instead. In both
+     * cases the number of threads is not limited, so the number of concurrent tasks should be limited by the caller.
+     *
+     * @param prefix the prefix of the thread names
+     * @return the executor service
+     */
+    static ExecutorService newThreadPerTaskExecutor(String prefix) {
+        var threadFactory = newThreadFactory(prefix);
+        if (isAvailable() && NEW_THREAD_PER_TASK_EXECUTOR != null) {
+            try {
+                return (ExecutorService) NEW_THREAD_PER_TASK_EXECUTOR.invoke(null, threadFactory);
+            }
+            catch (ReflectiveOperationException e) {
+                log.warn("Could not create a thread-per-task executor; using a cached thread pool instead", e);
+            }
+        }
+        return Executors.newCachedThreadPool(threadFactory);
+    }
+
+    private static Class<?> builderClass() {
+        try {
+            return Class.forName("java.lang.Thread$Builder");
+        }
+        catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    private static Method findMethod(Class<?> type, String name, Class<?>... parameterTypes) {
+        if (type == null) {
+            return null;
+        }
+        try {
+            return type.getMethod(name, parameterTypes);
+        }
+        catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.pollingtaskexec;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+
+/**
+ * A task scheduler that runs at most {@code maxTasks} tasks at the same time on an {@link ExecutorService}, and reports how many more tasks it can take. Used with a {@link PollingTaskExecutor},
+ * inputs are only claimed for slots that it has reserved, so that no claimed input waits in the queue of the executor service or is rejected because another party took its slot. The executor service should have at least {@code maxTasks} threads.
+ */
+public class BoundedTaskScheduler implements TaskScheduler {
+    private final ExecutorService executorService;
+    private final Semaphore slots;
+
+    public BoundedTaskScheduler(ExecutorService executorService, int maxTasks) {
+        if (maxTasks < 1) {
+            throw new IllegalArgumentException("maxTasks must be at least 1");
+        }
+        this.executorService = executorService;
+        this.slots = new Semaphore(maxTasks);
+    }
+
+    /**
+     * Schedules the task if a slot is free.
+     *
+     * @param task the task to schedule
+     * @throws RejectedExecutionException if all slots are taken, or the executor service rejects the task
+     */
+    @Override
+    public void schedule(Runnable task) {
+        if (!slots.tryAcquire()) {
+            throw new RejectedExecutionException("No capacity available to schedule task");
+        }
+        scheduleReserved(task);
+    }
+
+    /**
+     * Schedules the task in a slot reserved with {@link #tryReserve(int)}.
+     *
+     * @param task the task to schedule
+     * @throws RejectedExecutionException if the executor service rejects the task; the slot is then released
+     */
+    @Override
+    public void scheduleReserved(Runnable task) {
+        try {
+            executorService.execute(() -> {
+                try {
+                    task.run();
+                }
+                finally {
+                    slots.release();
+                }
+            });
+        }
+        catch (RejectedExecutionException e) {
+            slots.release();
+            throw e;
+        }
+    }
+
+    @Override
+    public int availableCapacity() {
+        return slots.availablePermits();
+    }
+
+    @Override
+    public int tryReserve(int max) {
+        int reserved = 0;
+        while (reserved < max && slots.tryAcquire()) {
+            reserved++;
+        }
+        return reserved;
+    }
+
+    @Override
+    public void release(int reserved) {
+        if (reserved > 0) {
+            slots.release(reserved);
+        }
+    }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.pollingtaskexec;
+
+/**
+ * Receives the records whose tasks have failed for the last time, according to the {@link RetryPolicy} of a {@link RetryingTaskFactory}. A typical implementation marks the record as failed in the
+ * database or moves it to a dead-letter table or directory, so that the task source does not return it again.
+ *
+ * @param <R> the type of the task records
+ */
+@FunctionalInterface
+public interface DeadLetterSink<R> {
+
+    /**
+     * Called with a record whose task will not be retried anymore.
+     *
+     * @param record   the record
+     * @param error    the exception thrown by the last attempt
+     * @param attempts the number of attempts made
+     */
+    void deadLetter(R record, Throwable error, int attempts);
+}
@@ -15,25 +15,48 @@
  */
 package nl.knaw.dans.lib.util.pollingtaskexec;
 
+import com.codahale.metrics.MetricRegistry;
 import io.dropwizard.hibernate.UnitOfWork;
 import io.dropwizard.lifecycle.Managed;
-import lombok.RequiredArgsConstructor;
+import lombok.Builder;
+import lombok.NonNull;
 import lombok.extern.slf4j.Slf4j;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 
 /**
  * A task executor that repeatedly polls a task source for new work items at a fixed interval and executes them using a provided task factory. This class is designed to manage the lifecycle of a
  * polling process that retrieves tasks and executes them in a controlled manner.
+ * <p>
+ * By default, each tick takes one input from the task source. With a {@code batchSize} larger than 1, each claim takes up to that many inputs with {@link TaskSource#nextInputs(int)}, in one
+ * {@code @UnitOfWork}. If {@code drain} is set, a tick keeps claiming until the task source returns fewer inputs than requested, so that a backlog is worked off without waiting a polling interval
+ * between claims. Before each claim, the executor {@link TaskScheduler#tryReserve(int) reserves} capacity for up to {@code batchSize} tasks with the task scheduler, claims no more inputs than it
+ * could reserve, and skips claiming altogether if no capacity is available. Reservations that are not used are released after the claim. With a {@link BoundedTaskScheduler}, inputs are therefore
+ * only claimed when a worker is free to run them, and their tasks are not rejected if another party schedules tasks on the same scheduler.
+ * <p>
+ * If a {@code maxPollingInterval} is set, the executor polls adaptively instead of at a fixed interval: after a tick that found work it polls again immediately, and after a tick that found
+ * nothing it waits, starting with {@code pollingInterval} and doubling the wait after every idle tick up to {@code maxPollingInterval}. Producers that have just added work, e.g. a REST resource that
+ * inserted a task record, can call {@link #wakeUp()} to have the executor poll at once.
+ * <p>
+ * If a {@code metricRegistry} is configured, the executor registers metrics for the claim latency, the time tasks wait before they run, the run duration, the numbers of succeeded and failed tasks
+ * and the poll hit ratio, under names that include the {@code name} of the executor. See {@link PollingTaskExecutorMetrics} for details. A {@link TaskExecutionListener} can be configured as
+ * {@code listener} to trace the creation and running of the tasks.
+ * <p>
+ * The executor keeps track of the tasks that it has claimed and that have not finished yet. When it is stopped, it stops claiming new inputs and waits up to {@code drainTimeout} (default 0) for
+ * those tasks to finish, see {@link #stop(Duration)}.
  *
  * @param <R> the type of the task records returned by the task source
  */
 @Slf4j
-@RequiredArgsConstructor
 public class PollingTaskExecutor<R> implements Managed {
     private final String name;
     private final ScheduledExecutorService scheduledExecutorService;
@@ -41,13 +64,56 @@ public class PollingTaskExecutor<R> implements Managed {
     private final TaskSource<R> taskSource;
     private final TaskFactory<R> taskFactory;
     private final TaskScheduler taskScheduler;
+    private final int batchSize;
+    private final boolean drain;
+    private final Duration maxPollingInterval;
+    private final PollingTaskExecutorMetrics metrics;
+    private final TaskExecutionListener<R> listener;
+    private final Duration drainTimeout;
 
+    private final Object scheduleLock = new Object();
+    // Held while claiming, so that stopClaiming() can wait for a claim in progress
+    private final Object claimLock = new Object();
     private ScheduledFuture<?> future;
+    private long tickGeneration;
+    private long nextIdleDelayMs;
+    private boolean ticking;
+    private boolean wokenUp;
+    private volatile boolean stopped;
+    // Only accessed by the polling thread
+    private long taskSequence;
+    private final Map<Long, R> tasksInFlight = new LinkedHashMap<>();
 
     public PollingTaskExecutor(String name, ScheduledExecutorService scheduledExecutorService, Duration pollingInterval, TaskSource<R> taskSource, TaskFactory<R> taskFactory) {
         this(name, scheduledExecutorService, pollingInterval, taskSource, taskFactory, new ImmediateTaskScheduler());
     }
 
+    public PollingTaskExecutor(String name, ScheduledExecutorService scheduledExecutorService, Duration pollingInterval, TaskSource<R> taskSource, TaskFactory<R> taskFactory,
+        TaskScheduler taskScheduler) {
+        this(name, scheduledExecutorService, pollingInterval, taskSource, taskFactory, taskScheduler, 1, false, null, null, null, null);
+    }
+
+    @Builder
+    private PollingTaskExecutor(@NonNull String name, @NonNull ScheduledExecutorService scheduledExecutorService, @NonNull Duration pollingInterval, @NonNull TaskSource<R> taskSource,
+        @NonNull TaskFactory<R> taskFactory, TaskScheduler taskScheduler, Integer batchSize, boolean drain, Duration maxPollingInterval,
+        MetricRegistry metricRegistry, TaskExecutionListener<R> listener, Duration drainTimeout) {
+        if (maxPollingInterval != null && maxPollingInterval.compareTo(pollingInterval) < 0) {
+            throw new IllegalArgumentException("maxPollingInterval must not be shorter than pollingInterval");
+        }
+        this.name = name;
+        this.scheduledExecutorService = scheduledExecutorService;
+        this.pollingInterval = pollingInterval;
+        this.taskSource = taskSource;
+        this.taskFactory = taskFactory;
+        this.taskScheduler = taskScheduler == null ? new ImmediateTaskScheduler() : taskScheduler;
+        this.batchSize = batchSize == null || batchSize <= 0 ? 1 : batchSize;
+        this.drain = drain;
+        this.maxPollingInterval = maxPollingInterval;
+        this.metrics = metricRegistry == null ? null : new PollingTaskExecutorMetrics(metricRegistry, name);
+        this.listener = listener;
+        this.drainTimeout = drainTimeout == null ? Duration.ZERO : drainTimeout;
+    }
+
     /**
      * Copy constructor. The source executor must not be running. The purpose of this constructor is only to be able to wrap a PollingTaskExecutor in a UnitOfWorkAwareProxy. In general, no copies
      * should be created of a PollingTaskExecutor, and in particular should the scheduler not be shared among PollingTaskExecutors.
@@ -65,37 +131,308 @@ public class PollingTaskExecutor<R> implements Managed {
         this.taskSource = other.taskSource;
         this.taskFactory = other.taskFactory;
         this.taskScheduler = other.taskScheduler;
+        this.batchSize = other.batchSize;
+        this.drain = other.drain;
+        this.maxPollingInterval = other.maxPollingInterval;
+        this.metrics = other.metrics;
+        this.listener = other.listener;
+        this.drainTimeout = other.drainTimeout;
     }
 
     @Override
     public void start() {
         long delayMs = Math.max(1L, pollingInterval.toMillis());
+        if (maxPollingInterval != null) {
+            synchronized (scheduleLock) {
+                nextIdleDelayMs = delayMs;
+                scheduleAdaptiveTick(0);
+            }
+            log.info("{} started; polling every {} to {}", name, pollingInterval, maxPollingInterval);
+            return;
+        }
         future = scheduledExecutorService.scheduleWithFixedDelay(this::tick, 0, delayMs, TimeUnit.MILLISECONDS);
         log.info("{} started; polling every {}", name, pollingInterval);
     }
 
     @Override
     public void stop() {
-        if (future != null) {
-            future.cancel(false);
+        stop(drainTimeout);
+    }
+
+    /**
+     * Stops claiming new inputs and waits until the tasks that were already claimed have finished, or until the drain timeout has passed. A tick that is draining the task source stops claiming as
+     * well, and does not schedule the inputs of its last claim that it has not scheduled yet. Those inputs and the tasks that are still running after the timeout are abandoned: the tasks are not
+     * interrupted, but the executor no longer waits for them. Their records are returned, so that they can be reported; their claims should be released by the task source in some other
+     * way, e.g. by the expiry of a lease.
+     *
+     * @param drainTimeout the maximum time to wait for running tasks
+     * @return the records of the abandoned tasks
+     */
+    public List<R> stop(Duration drainTimeout) {
+        long deadline = System.nanoTime() + drainTimeout.toNanos();
+        stopClaiming();
+        var abandoned = awaitDrained(deadline);
+        if (abandoned.isEmpty()) {
+            log.info("{} stopped", name);
+        }
+        else {
+            log.warn("{} stopped; abandoned {} tasks that were still running after {}: {}", name, abandoned.size(), drainTimeout, abandoned);
+        }
+        return abandoned;
+    }
+
+    void stopClaiming() {
+        synchronized (scheduleLock) {
+            stopped = true;
+            if (future != null) {
+                future.cancel(false);
+            }
+        }
+        // A claim that started before stopped was set is registered in tasksInFlight once this lock is free; later claims see stopped
+        synchronized (claimLock) {
+            log.debug("{}: claiming stopped", name);
         }
         scheduledExecutorService.shutdown();
-        log.info("{} stopped", name);
     }
 
-    public void tick() {
+    // Returns the records of the tasks that are still running at the deadline (a System.nanoTime() value)
+    List<R> awaitDrained(long deadline) {
         try {
-            Optional<R> input = getNextInput();
-            if (input.isEmpty()) {
+            // A claim may be in progress, and with an ImmediateTaskScheduler the tasks run on the polling thread
+            scheduledExecutorService.awaitTermination(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            synchronized (tasksInFlight) {
+                long remaining;
+                while (!tasksInFlight.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(tasksInFlight, remaining);
+                }
+            }
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (tasksInFlight) {
+            return new ArrayList<>(tasksInFlight.values());
+        }
+    }
+
+    /**
+     * Returns the number of tasks that have been claimed but have not finished yet.
+     *
+     * @return the number of tasks in flight
+     */
+    public int getTasksInFlight() {
+        synchronized (tasksInFlight) {
+            return tasksInFlight.size();
+        }
+    }
+
+    /**
+     * Makes the executor poll as soon as possible, and resets the backoff of adaptive polling. If a tick is running, the executor polls again right after it. Has no effect if the executor polls at a
+     * fixed interval, or is not running.
+     */
+    public void wakeUp() {
+        synchronized (scheduleLock) {
+            if (maxPollingInterval == null || future == null || stopped) {
                 return;
             }
-            log.debug("{}: found next task input: {}", name, input.get());
-            Runnable task = taskFactory.create(input.get());
-            taskScheduler.schedule(task);
+            nextIdleDelayMs = Math.max(1L, pollingInterval.toMillis());
+            if (ticking) {
+                wokenUp = true;
+                return;
+            }
+            future.cancel(false);
+            scheduleAdaptiveTick(0);
+        }
+    }
+
+    public void tick() {
+        poll();
+    }
+
+    // Returns the number of inputs claimed
+    private int poll() {
+        int claimed = 0;
+        try {
+            int requested;
+            int received;
+            do {
+                requested = taskScheduler.tryReserve(batchSize);
+                if (requested <= 0) {
+                    log.debug("{}: no capacity available; not claiming", name);
+                    break;
+                }
+                int unused = requested;
+                try {
+                    Map<Long, R> inputs;
+                    synchronized (claimLock) {
+                        if (stopped) {
+                            break;
+                        }
+                        inputs = register(claim(requested));
+                    }
+                    received = inputs.size();
+                    claimed += received;
+                    for (var input : inputs.entrySet()) {
+                        if (stopped) {
+                            // The remaining inputs stay in tasksInFlight, so that stop(Duration) reports them as abandoned
+                            log.debug("{}: stopped; not scheduling input {}", name, input.getValue());
+                            continue;
+                        }
+                        if (schedule(input.getKey(), input.getValue())) {
+                            unused--;
+                        }
+                    }
+                }
+                finally {
+                    taskScheduler.release(unused);
+                }
+            }
+            while (drain && received == requested && !stopped);
         }
         catch (Exception e) {
             log.error("{}: error while polling or running task", name, e);
         }
+        return claimed;
+    }
+
+    // Must be called with scheduleLock held
+    private void scheduleAdaptiveTick(long delayMs) {
+        if (stopped) {
+            return;
+        }
+        // A tick that was already started when it was superseded by a wake-up recognizes itself by its generation and does nothing
+        long generation = ++tickGeneration;
+        future = scheduledExecutorService.schedule(() -> adaptiveTick(generation), delayMs, TimeUnit.MILLISECONDS);
+    }
+
+    private void adaptiveTick(long generation) {
+        synchronized (scheduleLock) {
+            if (generation != tickGeneration || stopped) {
+                return;
+            }
+            ticking = true;
+        }
+        int claimed = 0;
+        try {
+            claimed = poll();
+        }
+        finally {
+            synchronized (scheduleLock) {
+                ticking = false;
+                long delayMs = 0;
+                if (claimed > 0 || wokenUp) {
+                    nextIdleDelayMs = Math.max(1L, pollingInterval.toMillis());
+                }
+                else if (taskScheduler.availableCapacity() <= 0) {
+                    // Busy rather than idle, so check again for capacity after the base interval
+                    delayMs = nextIdleDelayMs = Math.max(1L, pollingInterval.toMillis());
+                }
+                else {
+                    delayMs = nextIdleDelayMs;
+                    nextIdleDelayMs = Math.min(nextIdleDelayMs * 2, maxPollingInterval.toMillis());
+                }
+                wokenUp = false;
+                scheduleAdaptiveTick(delayMs);
+            }
+        }
+    }
+
+    private List<R> claim(int max) {
+        long start = System.nanoTime();
+        var inputs = batchSize == 1 ? getNextInput().map(List::of).orElse(List.<R> of()) : getNextInputs(max);
+        if (metrics != null) {
+            metrics.claimed(inputs.size(), System.nanoTime() - start);
+        }
+        return inputs;
+    }
+
+    // Adds the claimed inputs to the tasks in flight as soon as they are claimed, so that stop(Duration) also reports the inputs that have not been scheduled yet
+    private Map<Long, R> register(List<R> inputs) {
+        var registered = new LinkedHashMap<Long, R>();
+        for (R input : inputs) {
+            registered.put(++taskSequence, input);
+        }
+        synchronized (tasksInFlight) {
+            tasksInFlight.putAll(registered);
+        }
+        return registered;
+    }
+
+    // Returns whether the reservation for the input was used, i.e. handed to the task scheduler
+    private boolean schedule(long id, R input) {
+        boolean reservationUsed = false;
+        // The other inputs of the batch have been claimed as well, so an error for one input must not prevent the others from being scheduled
+        try {
+            log.debug("{}: found next task input: {}", name, input);
+            notifyListener(l -> l.beforeCreate(input));
+            Runnable task = taskFactory.create(input);
+            notifyListener(l -> l.afterCreate(input, task));
+            reservationUsed = true;
+            taskScheduler.scheduleReserved(instrument(id, input, task));
+        }
+        catch (Exception e) {
+            taskFinished(id);
+            log.error("{}: error while creating or running task for input {}", name, input, e);
+        }
+        return reservationUsed;
+    }
+
+    private Runnable instrument(long id, R input, Runnable task) {
+        if (metrics == null && listener == null) {
+            // Only keep track of the tasks in flight, for stop(Duration)
+            return () -> {
+                try {
+                    task.run();
+                }
+                finally {
+                    taskFinished(id);
+                }
+            };
+        }
+        long scheduled = System.nanoTime();
+        return () -> {
+            long start = System.nanoTime();
+            if (metrics != null) {
+                metrics.started(start - scheduled);
+            }
+            notifyListener(l -> l.beforeRun(input));
+            Throwable error = null;
+            try {
+                task.run();
+            }
+            catch (RuntimeException | Error e) {
+                error = e;
+                throw e;
+            }
+            finally {
+                if (metrics != null) {
+                    metrics.finished(error == null, System.nanoTime() - start);
+                }
+                var finalError = error;
+                notifyListener(l -> l.afterRun(input, finalError));
+                taskFinished(id);
+            }
+        };
+    }
+
+    private void taskFinished(long id) {
+        synchronized (tasksInFlight) {
+            if (tasksInFlight.remove(id) != null && tasksInFlight.isEmpty()) {
+                tasksInFlight.notifyAll();
+            }
+        }
+    }
+
+    private void notifyListener(Consumer<TaskExecutionListener<R>> notification) {
+        if (listener == null) {
+            return;
+        }
+        try {
+            notification.accept(listener);
+        }
+        catch (Exception e) {
+            log.warn("{}: task execution listener failed", name, e);
+        }
     }
 
     // Must be protected for UnitOfWork to function.
@@ -103,4 +440,10 @@ public class PollingTaskExecutor<R> implements Managed {
     protected Optional<R> getNextInput() {
         return taskSource.nextInput();
     }
+
+    // Must be protected for UnitOfWork to function.
+    @UnitOfWork
+    protected List<R> getNextInputs(int max) {
+        return taskSource.nextInputs(max);
+    }
 }
@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.pollingtaskexec;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.RatioGauge;
+import com.codahale.metrics.Timer;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The metrics of a {@link PollingTaskExecutor}. All metric names start with the class name followed by the name of the executor:
+ * <ul>
+ *     <li>{@code claim-latency}: a timer of the calls to the task source, including the unit of work around them;</li>
+ *     <li>{@code queue-wait}: a timer of the time between scheduling a task and the start of its run;</li>
+ *     <li>{@code run-duration}: a timer of the runs of the tasks;</li>
+ *     <li>{@code succeeded} and {@code failed}: meters of the tasks that finished normally and with an exception;</li>
+ *     <li>{@code polls} and {@code hits}: meters of the calls to the task source and of the calls that returned at least one input;</li>
+ *     <li>{@code hit-ratio}: a gauge of the fraction of the calls to the task source that returned at least one input, over the last minute.</li>
+ * </ul>
+ */
+class PollingTaskExecutorMetrics {
+    private final Timer claimLatency;
+    private final Timer queueWait;
+    private final Timer runDuration;
+    private final Meter succeeded;
+    private final Meter failed;
+    private final Meter polls;
+    private final Meter hits;
+
+    PollingTaskExecutorMetrics(MetricRegistry registry, String executorName) {
+        var prefix = MetricRegistry.name(PollingTaskExecutor.class, executorName);
+        claimLatency = registry.timer(MetricRegistry.name(prefix, "claim-latency"));
+        queueWait = registry.timer(MetricRegistry.name(prefix, "queue-wait"));
+        runDuration = registry.timer(MetricRegistry.name(prefix, "run-duration"));
+        succeeded = registry.meter(MetricRegistry.name(prefix, "succeeded"));
+        failed = registry.meter(MetricRegistry.name(prefix, "failed"));
+        polls = registry.meter(MetricRegistry.name(prefix, "polls"));
+        hits = registry.meter(MetricRegistry.name(prefix, "hits"));
+        registry.gauge(MetricRegistry.name(prefix, "hit-ratio"), () -> new RatioGauge() {
+            @Override
+            protected Ratio getRatio() {
+                return Ratio.of(hits.getOneMinuteRate(), polls.getOneMinuteRate());
+            }
+        });
+    }
+
+    void claimed(int inputs, long durationNanos) {
+        claimLatency.update(durationNanos, TimeUnit.NANOSECONDS);
+        polls.mark();
+        if (inputs > 0) {
+            hits.mark();
+        }
+    }
+
+    void started(long queueWaitNanos) {
+        queueWait.update(queueWaitNanos, TimeUnit.NANOSECONDS);
+    }
+
+    void finished(boolean success, long durationNanos) {
+        runDuration.update(durationNanos, TimeUnit.NANOSECONDS);
+        (success ? succeeded : failed).mark();
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.pollingtaskexec;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Histogram;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+
+/**
+ * The metrics of a {@link RetryingTaskFactory}; see there for a description.
+ */
+class RetryMetrics {
+    private final Meter retries;
+    private final Meter recovered;
+    private final Meter deadLettered;
+    private final Histogram attempts;
+
+    RetryMetrics(MetricRegistry registry, String factoryName, Gauge<Integer> pendingRetries) {
+        var prefix = MetricRegistry.name(RetryingTaskFactory.class, factoryName);
+        retries = registry.meter(MetricRegistry.name(prefix, "retries"));
+        recovered = registry.meter(MetricRegistry.name(prefix, "recovered"));
+        deadLettered = registry.meter(MetricRegistry.name(prefix, "dead-lettered"));
+        attempts = registry.histogram(MetricRegistry.name(prefix, "attempts"));
+        registry.register(MetricRegistry.name(prefix, "pending-retries"), pendingRetries);
+    }
+
+    void retryScheduled() {
+        retries.mark();
+    }
+
+    void succeeded(int attempt) {
+        if (attempt > 1) {
+            recovered.mark();
+        }
+        attempts.update(attempt);
+    }
+
+    void deadLettered(int attempt) {
+        deadLettered.mark();
+        attempts.update(attempt);
+    }
+}
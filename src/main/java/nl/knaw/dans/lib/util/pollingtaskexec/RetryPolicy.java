@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.pollingtaskexec;
+
+import lombok.Builder;
+import lombok.Getter;
+
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Predicate;
+
+/**
+ * Decides whether and when a failed task is retried by a {@link RetryingTaskFactory}. A task is attempted at most {@code maxAttempts} times (default 3), and only retried if the
+ * {@code retryable} predicate (default: all exceptions) accepts the exception it threw.
+ * <p>
+ * The delay before the n-th retry is {@code initialBackoff * multiplier^(n - 1)} (defaults 1 second and 2), capped at {@code maxBackoff} (default 5 minutes). To keep records that failed together
+ * from being retried together, a random part of the delay, up to the fraction {@code jitter} (default 0.5), is left out.
+ */
+public class RetryPolicy {
+    @Getter
+    private final int maxAttempts;
+    private final Duration initialBackoff;
+    private final Duration maxBackoff;
+    private final double multiplier;
+    private final double jitter;
+    private final Predicate<Throwable> retryable;
+
+    @Builder
+    private RetryPolicy(Integer maxAttempts, Duration initialBackoff, Duration maxBackoff, Double multiplier, Double jitter, Predicate<Throwable> retryable) {
+        this.maxAttempts = maxAttempts == null ? 3 : maxAttempts;
+        this.initialBackoff = initialBackoff == null ? Duration.ofSeconds(1) : initialBackoff;
+        this.maxBackoff = maxBackoff == null ? Duration.ofMinutes(5) : maxBackoff;
+        this.multiplier = multiplier == null ? 2.0 : multiplier;
+        this.jitter = jitter == null ? 0.5 : jitter;
+        this.retryable = retryable == null ? e -> true : retryable;
+        if (this.maxAttempts < 1) {
+            throw new IllegalArgumentException("maxAttempts must be at least 1");
+        }
+        if (this.multiplier < 1.0) {
+            throw new IllegalArgumentException("multiplier must be at least 1");
+        }
+        if (this.jitter < 0.0 || this.jitter > 1.0) {
+            throw new IllegalArgumentException("jitter must be between 0 and 1");
+        }
+    }
+
+    /**
+     * Returns whether a task that failed with the given exception should be attempted again.
+     *
+     * @param attempts the number of attempts made so far
+     * @param error    the exception thrown by the last attempt
+     * @return true if the task should be retried
+     */
+    public boolean shouldRetry(int attempts, Throwable error) {
+        return attempts < maxAttempts && retryable.test(error);
+    }
+
+    /**
+     * Returns the delay before the next attempt.
+     *
+     * @param attempts the number of attempts made so far
+     * @return the delay
+     */
+    public Duration backoff(int attempts) {
+        return backoff(attempts, ThreadLocalRandom.current().nextDouble());
+    }
+
+    Duration backoff(int attempts, double random) {
+        double delayMillis = Math.min(initialBackoff.toMillis() * Math.pow(multiplier, attempts - 1), maxBackoff.toMillis());
+        return Duration.ofMillis(Math.round(delayMillis * (1.0 - jitter * random)));
+    }
+}
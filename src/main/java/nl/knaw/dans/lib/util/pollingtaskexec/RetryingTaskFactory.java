@@ -0,0 +1,266 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.pollingtaskexec;
+
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.lifecycle.Managed;
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A {@link TaskFactory} that retries the tasks of another task factory when they fail. When a task throws an exception, the {@link RetryPolicy} decides whether it is attempted again. If so, a new
+ * task is created for the same record after the backoff delay of the policy and handed to the {@code taskScheduler}; otherwise the record is passed to the {@link DeadLetterSink}.
+ * <p>
+ * The exceptions are logged and not rethrown, so a task created by this factory always completes normally. When it is used with a {@link PollingTaskExecutor}, the metrics and the
+ * {@link TaskExecutionListener} of the executor therefore count a failed first attempt as succeeded, and they do not see the retries at all, as those are scheduled by this factory. The outcome of a
+ * record is reported by the metrics of this factory instead: {@code recovered}, {@code dead-lettered} and {@code retries}.
+ * <p>
+ * The delays are kept in a timing wheel with a resolution of {@code tickDuration} (default 100 milliseconds), so that waiting retries do not occupy a thread. The retries are handed to the task
+ * scheduler on the thread of the timing wheel, so the task scheduler should run the tasks asynchronously, e.g. an {@link ExecutorServiceTaskScheduler} or {@link BoundedTaskScheduler}. If the
+ * task scheduler rejects a retry, it is offered again one tick later, up to {@code maxRejections} (default 600) times in a row; after that, e.g. because the executor of the task scheduler has
+ * been shut down, the record is passed to the dead letter sink with the {@link RejectedExecutionException}. The retries may share a {@link BoundedTaskScheduler} with the
+ * {@link PollingTaskExecutor}: the executor {@link TaskScheduler#tryReserve(int) reserves} its slots before it claims inputs, so a retry can only take a slot that is free at that moment and
+ * never causes a claimed input to be rejected.
+ * A retry that finds all slots taken waits for the next tick, so with a busy executor the retries get fewer slots; use a separate scheduler if they must have capacity of their own.
+ * <p>
+ * The timing wheel is started by {@link #start()}. A record has a retry in flight from its first failed attempt until an attempt succeeds or the record is dead-lettered. When the factory is
+ * stopped, it waits up to {@code drainTimeout} (default 0) for the retries in flight to finish, see {@link #stop(Duration)}. Retries that are still in flight after that are dropped; the task
+ * source should hand out their records again, e.g. after their lease has expired. As the retries are outside the tasks in flight of a {@link PollingTaskExecutor}, the executor should be stopped
+ * before this factory. If a {@code metricRegistry} is given, the following metrics are registered under the class name followed by the {@code name} of the factory:
+ * <ul>
+ *     <li>{@code retries}: a meter of the retries scheduled;</li>
+ *     <li>{@code recovered} and {@code dead-lettered}: meters of the records that succeeded after one or more retries, and of the records passed to the dead letter sink;</li>
+ *     <li>{@code attempts}: a histogram of the number of attempts it took to succeed or give up on a record;</li>
+ *     <li>{@code pending-retries}: a gauge of the number of retries waiting for their delay to pass.</li>
+ * </ul>
+ *
+ * @param <R> the type of the task records
+ */
+@Slf4j
+public class RetryingTaskFactory<R> implements TaskFactory<R>, Managed {
+    private final String name;
+    private final TaskFactory<R> taskFactory;
+    private final RetryPolicy retryPolicy;
+    private final TaskScheduler taskScheduler;
+    private final DeadLetterSink<R> deadLetterSink;
+    private final Duration tickDuration;
+    private final TimingWheel timingWheel;
+    private final RetryMetrics metrics;
+    private final Duration drainTimeout;
+    private final int maxRejections;
+
+    private final Map<Long, R> retriesInFlight = new LinkedHashMap<>();
+    private long retrySequence;
+    private volatile boolean stopped;
+
+    @Builder
+    private RetryingTaskFactory(@NonNull String name, @NonNull TaskFactory<R> taskFactory, RetryPolicy retryPolicy, @NonNull TaskScheduler taskScheduler,
+        @NonNull DeadLetterSink<R> deadLetterSink, Duration tickDuration, MetricRegistry metricRegistry, Duration drainTimeout,
+        Integer maxRejections) {
+        this.name = name;
+        this.taskFactory = taskFactory;
+        this.retryPolicy = retryPolicy == null ? RetryPolicy.builder().build() : retryPolicy;
+        this.taskScheduler = taskScheduler;
+        this.deadLetterSink = deadLetterSink;
+        this.tickDuration = tickDuration == null ? Duration.ofMillis(100) : tickDuration;
+        this.timingWheel = new TimingWheel(name + "-retries", this.tickDuration, 512);
+        this.metrics = metricRegistry == null ? null : new RetryMetrics(metricRegistry, name, timingWheel::size);
+        this.drainTimeout = drainTimeout == null ? Duration.ZERO : drainTimeout;
+        this.maxRejections = maxRejections == null || maxRejections <= 0 ? 600 : maxRejections;
+    }
+
+    @Override
+    public Runnable create(R record) {
+        return attempt(record, 1, taskFactory.create(record), 0);
+    }
+
+    @Override
+    public void start() {
+        timingWheel.start();
+        log.info("{} started", name);
+    }
+
+    @Override
+    public void stop() {
+        stop(drainTimeout);
+    }
+
+    /**
+     * Waits until the retries in flight have finished, or until the drain timeout has passed, and then stops the timing wheel. Retries that are still in flight after that are dropped: their records
+     * are returned, so that they can be reported. A retry that is running when the factory is stopped is not interrupted, but if it fails, it is not retried again.
+     *
+     * @param drainTimeout the maximum time to wait for the retries in flight
+     * @return the records of the dropped retries
+     */
+    public List<R> stop(Duration drainTimeout) {
+        long deadline = System.nanoTime() + drainTimeout.toNanos();
+        List<R> dropped;
+        synchronized (retriesInFlight) {
+            try {
+                long remaining;
+                while (!retriesInFlight.isEmpty() && (remaining = deadline - System.nanoTime()) > 0) {
+                    TimeUnit.NANOSECONDS.timedWait(retriesInFlight, remaining);
+                }
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            stopped = true;
+            dropped = new ArrayList<>(retriesInFlight.values());
+            retriesInFlight.clear();
+        }
+        timingWheel.stop();
+        if (dropped.isEmpty()) {
+            log.info("{} stopped", name);
+        }
+        else {
+            log.warn("{} stopped; dropped {} retries that were still in flight after {}: {}", name, dropped.size(), drainTimeout, dropped);
+        }
+        return dropped;
+    }
+
+    /**
+     * Returns the number of records that have failed at least once and that have not yet succeeded or been dead-lettered.
+     *
+     * @return the number of retries in flight
+     */
+    public int getRetriesInFlight() {
+        synchronized (retriesInFlight) {
+            return retriesInFlight.size();
+        }
+    }
+
+    // retryId identifies the retries of a record in retriesInFlight, or is 0 for the first attempt
+    private Runnable attempt(R record, int attempt, Runnable task, long retryId) {
+        return () -> {
+            try {
+                task.run();
+            }
+            catch (RuntimeException e) {
+                failed(record, attempt, e, retryId);
+                return;
+            }
+            if (attempt > 1) {
+                log.info("{}: task for {} succeeded at attempt {}", name, record, attempt);
+            }
+            if (metrics != null) {
+                metrics.succeeded(attempt);
+            }
+            retryFinished(retryId);
+        };
+    }
+
+    private void failed(R record, int attempt, RuntimeException error, long retryId) {
+        if (retryPolicy.shouldRetry(attempt, error)) {
+            if (stopped) {
+                log.warn("{}: attempt {} for {} failed after the factory was stopped; not retrying", name, attempt, record, error);
+                return;
+            }
+            var backoff = retryPolicy.backoff(attempt);
+            log.warn("{}: attempt {} of {} for {} failed; retrying in {}", name, attempt, retryPolicy.getMaxAttempts(), record, backoff, error);
+            if (metrics != null) {
+                metrics.retryScheduled();
+            }
+            timingWheel.schedule(backoff, new Retry(record, attempt + 1, retryId == 0 ? retryStarted(record) : retryId));
+        }
+        else {
+            log.error("{}: attempt {} for {} failed; giving up", name, attempt, record, error);
+            deadLetter(record, error, attempt, retryId);
+        }
+    }
+
+    private void deadLetter(R record, Throwable error, int attempts, long retryId) {
+        if (metrics != null) {
+            metrics.deadLettered(attempts);
+        }
+        try {
+            deadLetterSink.deadLetter(record, error, attempts);
+        }
+        catch (RuntimeException e) {
+            log.error("{}: error in dead letter sink for {}", name, record, e);
+        }
+        retryFinished(retryId);
+    }
+
+    private long retryStarted(R record) {
+        synchronized (retriesInFlight) {
+            long id = ++retrySequence;
+            retriesInFlight.put(id, record);
+            return id;
+        }
+    }
+
+    private void retryFinished(long retryId) {
+        if (retryId == 0) {
+            return;
+        }
+        synchronized (retriesInFlight) {
+            if (retriesInFlight.remove(retryId) != null && retriesInFlight.isEmpty()) {
+                retriesInFlight.notifyAll();
+            }
+        }
+    }
+
+    private class Retry implements Runnable {
+        private final R record;
+        private final int attempt;
+        private final long retryId;
+        private int rejections;
+
+        private Retry(R record, int attempt, long retryId) {
+            this.record = record;
+            this.attempt = attempt;
+            this.retryId = retryId;
+        }
+
+        @Override
+        public void run() {
+            Runnable task;
+            try {
+                task = taskFactory.create(record);
+            }
+            catch (RuntimeException e) {
+                failed(record, attempt, e, retryId);
+                return;
+            }
+            try {
+                taskScheduler.schedule(attempt(record, attempt, task, retryId));
+            }
+            catch (RejectedExecutionException e) {
+                if (stopped) {
+                    log.debug("{}: retry of {} rejected by task scheduler after the factory was stopped; dropping it", name, record);
+                }
+                else if (++rejections < maxRejections) {
+                    log.debug("{}: retry of {} rejected by task scheduler; offering it again", name, record);
+                    timingWheel.schedule(tickDuration, this);
+                }
+                else {
+                    log.error("{}: retry of {} rejected by task scheduler {} times; giving up", name, record, rejections, e);
+                    deadLetter(record, e, attempt - 1, retryId);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.pollingtaskexec;
+
+import com.codahale.metrics.MetricRegistry;
+import io.dropwizard.lifecycle.Managed;
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.function.IntFunction;
+import java.util.function.UnaryOperator;
+
+/**
+ * Runs a number of {@link PollingTaskExecutor}s in parallel, each of which polls its own shard of the task records. The records are assigned to shards by their key, e.g. the id of the dataset they
+ * belong to, so that all records with the same key end up in the same shard. The {@code taskSourceForShard} function returns, for each shard number from 0 to {@code shards - 1}, a
+ * {@link TaskSource} that only returns the records of that shard, e.g. by adding a condition like {@code mod(dataset_id, shards) = shard} to its query. For in-memory sources,
+ * {@link #shardOf(Object, int)} can be used.
+ * <p>
+ * Each shard has its own polling thread, on which it also runs its tasks, one after the other. The tasks of a shard therefore run in the order in which they were claimed, and tasks for the same key
+ * never run concurrently. Different shards run in parallel, so the claim throughput and the number of concurrent tasks scale with the number of shards.
+ * <p>
+ * The {@code pollingInterval}, {@code maxPollingInterval}, {@code batchSize}, {@code drain}, {@code metricRegistry}, {@code listener} and {@code drainTimeout} settings apply to each shard, see
+ * {@link PollingTaskExecutor}; the metrics of each shard are registered under the name of the shard, {@code <name>-shard-<number>}. To run the claims of the shards in a
+ * {@code @UnitOfWork}, pass an {@code executorDecorator} that wraps each shard's executor in a proxy, e.g.
+ * {@code executor -> proxyFactory.create(PollingTaskExecutor.class, PollingTaskExecutor.class, executor)}.
+ *
+ * @param <R> the type of the task records returned by the task sources
+ */
+@Slf4j
+public class ShardedPollingTaskExecutor<R> implements Managed {
+    private final String name;
+    private final List<PollingTaskExecutor<R>> shardExecutors = new ArrayList<>();
+    private final Duration drainTimeout;
+
+    @Builder
+    private ShardedPollingTaskExecutor(@NonNull String name, int shards, @NonNull Duration pollingInterval, Duration maxPollingInterval, @NonNull IntFunction<TaskSource<R>> taskSourceForShard,
+        @NonNull TaskFactory<R> taskFactory, Integer batchSize, boolean drain, UnaryOperator<PollingTaskExecutor<R>> executorDecorator,
+        MetricRegistry metricRegistry, TaskExecutionListener<R> listener, Duration drainTimeout) {
+        if (shards < 1) {
+            throw new IllegalArgumentException("The number of shards must be at least 1");
+        }
+        this.name = name;
+        this.drainTimeout = drainTimeout == null ? Duration.ZERO : drainTimeout;
+        for (int shard = 0; shard < shards; shard++) {
+            var shardName = name + "-shard-" + shard;
+            var executor = PollingTaskExecutor.<R> builder()
+                .name(shardName)
+                .scheduledExecutorService(Executors.newSingleThreadScheduledExecutor(r -> new Thread(r, shardName)))
+                .pollingInterval(pollingInterval)
+                .maxPollingInterval(maxPollingInterval)
+                .taskSource(taskSourceForShard.apply(shard))
+                .taskFactory(taskFactory)
+                .taskScheduler(new ImmediateTaskScheduler())
+                .batchSize(batchSize)
+                .drain(drain)
+                .metricRegistry(metricRegistry)
+                .listener(listener)
+                .build();
+            shardExecutors.add(executorDecorator == null ? executor : executorDecorator.apply(executor));
+        }
+    }
+
+    /**
+     * Returns the shard of a record key.
+     *
+     * @param key    the key
+     * @param shards the number of shards
+     * @return the shard number, from 0 to {@code shards - 1}
+     */
+    public static int shardOf(Object key, int shards) {
+        return Math.floorMod(key.hashCode(), shards);
+    }
+
+    @Override
+    public void start() {
+        shardExecutors.forEach(PollingTaskExecutor::start);
+        log.info("{} started with {} shards", name, shardExecutors.size());
+    }
+
+    @Override
+    public void stop() {
+        stop(drainTimeout);
+    }
+
+    /**
+     * Stops claiming new inputs in all shards, and waits until the tasks that were already claimed have finished, or until the drain timeout has passed; see
+     * {@link PollingTaskExecutor#stop(Duration)}.
+     *
+     * @param drainTimeout the maximum time to wait for running tasks
+     * @return the records of the abandoned tasks
+     */
+    public List<R> stop(Duration drainTimeout) {
+        long deadline = System.nanoTime() + drainTimeout.toNanos();
+        shardExecutors.forEach(PollingTaskExecutor::stopClaiming);
+        var abandoned = new ArrayList<R>();
+        for (var executor : shardExecutors) {
+            abandoned.addAll(executor.awaitDrained(deadline));
+        }
+        if (abandoned.isEmpty()) {
+            log.info("{} stopped", name);
+        }
+        else {
+            log.warn("{} stopped; abandoned {} tasks that were still running after {}: {}", name, abandoned.size(), drainTimeout, abandoned);
+        }
+        return abandoned;
+    }
+
+    /**
+     * Wakes up the executors of all shards; see {@link PollingTaskExecutor#wakeUp()}.
+     */
+    public void wakeUp() {
+        shardExecutors.forEach(PollingTaskExecutor::wakeUp);
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.pollingtaskexec;
+
+import lombok.Builder;
+import lombok.NonNull;
+import lombok.extern.slf4j.Slf4j;
+import nl.knaw.dans.lib.util.PersistenceProvider;
+
+import javax.persistence.LockModeType;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.BiConsumer;
+
+/**
+ * A {@link TaskSource} that claims task records from a database table, so that several pollers, on one or more nodes, can take work from the same table without waiting for each other's locks.
+ * <p>
+ * A record can be claimed if its {@code statusAttribute} equals {@code readyStatus}, or if it equals {@code claimedStatus} and the lease in its {@code leaseAttribute} (an {@link Instant}) has expired,
+ * which means that the poller that claimed it has presumably crashed. The records are selected in the order of {@code orderAttribute} and locked with {@code SELECT ... FOR UPDATE SKIP LOCKED}, so
+ * that records that are being claimed by another poller are skipped instead of waited for. The {@code claimer} then marks each selected record as claimed, by setting its status to
+ * {@code claimedStatus} and its lease to the given expiry time, which is {@code leaseTimeout} from now. The changes are flushed when the {@code @UnitOfWork} in which {@code PollingTaskExecutor}
+ * calls the task source is committed.
+ * <p>
+ * The lease timeout should be longer than the time it takes to process a record, unless the task extends the lease while it runs. When the task is done, it should set the status of the record to a
+ * value other than {@code readyStatus} and {@code claimedStatus}.
+ * <p>
+ * Skipping locked rows requires a database and Hibernate dialect that support it, such as PostgreSQL, MySQL 8 or Oracle. With other dialects Hibernate falls back to a plain {@code FOR UPDATE},
+ * which is still correct, but makes concurrent pollers wait for each other.
+ *
+ * @param <E> the type of the task record entity
+ */
+@Slf4j
+public class SkipLockedTaskSource<E> implements TaskSource<E> {
+    // The value of javax.persistence.lock.timeout that makes Hibernate skip locked rows (LockOptions.SKIP_LOCKED)
+    private static final int SKIP_LOCKED = -2;
+
+    private final PersistenceProvider<E> persistenceProvider;
+    private final Class<E> entityClass;
+    private final String statusAttribute;
+    private final Object readyStatus;
+    private final Object claimedStatus;
+    private final String leaseAttribute;
+    private final Duration leaseTimeout;
+    private final String orderAttribute;
+    private final BiConsumer<E, Instant> claimer;
+    private final Clock clock;
+
+    @Builder
+    private SkipLockedTaskSource(@NonNull PersistenceProvider<E> persistenceProvider, @NonNull Class<E> entityClass, @NonNull String statusAttribute, @NonNull Object readyStatus,
+        @NonNull Object claimedStatus, @NonNull String leaseAttribute, @NonNull Duration leaseTimeout, String orderAttribute, @NonNull BiConsumer<E, Instant> claimer, Clock clock) {
+        this.persistenceProvider = persistenceProvider;
+        this.entityClass = entityClass;
+        this.statusAttribute = statusAttribute;
+        this.readyStatus = readyStatus;
+        this.claimedStatus = claimedStatus;
+        this.leaseAttribute = leaseAttribute;
+        this.leaseTimeout = leaseTimeout;
+        this.orderAttribute = orderAttribute == null ? "id" : orderAttribute;
+        this.claimer = claimer;
+        this.clock = clock == null ? Clock.systemUTC() : clock;
+    }
+
+    @Override
+    public Optional<E> nextInput() {
+        return nextInputs(1).stream().findFirst();
+    }
+
+    @Override
+    public List<E> nextInputs(int max) {
+        var now = clock.instant();
+        var cb = persistenceProvider.getCriteriaBuilder();
+        var query = cb.createQuery(entityClass);
+        var root = query.from(entityClass);
+        query.select(root)
+            .where(cb.or(
+                cb.equal(root.get(statusAttribute), readyStatus),
+                cb.and(
+                    cb.equal(root.get(statusAttribute), claimedStatus),
+                    cb.lessThan(root.<Instant> get(leaseAttribute), now))))
+            .orderBy(cb.asc(root.get(orderAttribute)));
+        var records = persistenceProvider.createQuery(query)
+            .setMaxResults(max)
+            .setLockMode(LockModeType.PESSIMISTIC_WRITE)
+            .setHint("javax.persistence.lock.timeout", SKIP_LOCKED)
+            .getResultList();
+        var leaseExpiry = now.plus(leaseTimeout);
+        for (var record : records) {
+            log.debug("Claiming {} until {}", record, leaseExpiry);
+            claimer.accept(record, leaseExpiry);
+            persistenceProvider.update(record);
+        }
+        return records;
+    }
+}
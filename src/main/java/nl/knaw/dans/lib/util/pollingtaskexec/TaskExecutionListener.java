@@ -0,0 +1,60 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.pollingtaskexec;
+
+/**
+ * Receives notifications about the tasks of a {@link PollingTaskExecutor}, e.g. to add tracing. The create notifications are sent on the polling thread, the run notifications on the thread that
+ * runs the task, so that a listener can set up thread-local context, such as a tracing span or MDC values, in {@link #beforeRun(Object)} and clear it in {@link #afterRun(Object, Throwable)}.
+ * Exceptions thrown by a listener are logged and otherwise ignored.
+ *
+ * @param <R> the type of the task records
+ */
+public interface TaskExecutionListener<R> {
+
+    /**
+     * Called before the task factory creates the task for a record.
+     *
+     * @param record the record
+     */
+    default void beforeCreate(R record) {
+    }
+
+    /**
+     * Called after the task factory has created the task for a record, before the task is scheduled.
+     *
+     * @param record the record
+     * @param task   the task
+     */
+    default void afterCreate(R record, Runnable task) {
+    }
+
+    /**
+     * Called on the thread that runs the task, just before it runs.
+     *
+     * @param record the record
+     */
+    default void beforeRun(R record) {
+    }
+
+    /**
+     * Called on the thread that runs the task, just after it has run.
+     *
+     * @param record the record
+     * @param error  the exception or error thrown by the task, or null if it succeeded
+     */
+    default void afterRun(R record, Throwable error) {
+    }
+}
@@ -23,4 +23,44 @@ public interface TaskScheduler {
      * @param task the task to schedule
      */
     void schedule(Runnable task);
+
+    /**
+     * Returns the number of tasks that can be scheduled now without having to wait for a worker. The value may be out of date as soon as it is returned; use {@link #tryReserve(int)} to
+     * make sure that capacity is available for the tasks to be scheduled. The default implementation returns {@link Integer#MAX_VALUE}, meaning that the capacity is not limited.
+     *
+     * @return the available capacity
+     */
+    default int availableCapacity() {
+        return Integer.MAX_VALUE;
+    }
+
+    /**
+     * Reserves capacity for up to {@code max} tasks. Each reservation must be used by {@link #scheduleReserved(Runnable)} or given back with {@link #release(int)}. {@code PollingTaskExecutor}
+     * reserves capacity before it claims inputs, so that the tasks for the claimed inputs cannot be rejected because another party took the capacity in the meantime. The default implementation
+     * reserves {@code max} tasks, as the capacity is not limited.
+     *
+     * @param max the maximum number of tasks to reserve capacity for
+     * @return the number of tasks for which capacity was reserved, possibly 0
+     */
+    default int tryReserve(int max) {
+        return max;
+    }
+
+    /**
+     * Gives back reserved capacity that will not be used.
+     *
+     * @param reserved the number of unused reservations
+     */
+    default void release(int reserved) {
+    }
+
+    /**
+     * Schedules the task for execution, using capacity reserved with {@link #tryReserve(int)}. If the task is rejected anyway, e.g. because the executor is shut down, the reservation is given back.
+     * The default implementation calls {@link #schedule(Runnable)}.
+     *
+     * @param task the task to schedule
+     */
+    default void scheduleReserved(Runnable task) {
+        schedule(task);
+    }
 }
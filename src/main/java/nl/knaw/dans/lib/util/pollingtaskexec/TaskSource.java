@@ -15,6 +15,8 @@
  */
 package nl.knaw.dans.lib.util.pollingtaskexec;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
 
 /**
@@ -26,4 +28,24 @@ import java.util.Optional;
  */
 public interface TaskSource<R> {
     Optional<R> nextInput();
+
+    /**
+     * Returns up to {@code max} inputs, or an empty list if no tasks are available. When invoked by {@code PollingTaskExecutor}, the whole batch is claimed within one {@code @UnitOfWork}. The
+     * default implementation calls {@link #nextInput()} until it returns an empty Optional or {@code max} inputs have been collected; implementations that can claim several inputs with one query
+     * should override it.
+     *
+     * @param max the maximum number of inputs to return
+     * @return the inputs, in the order in which the tasks should be scheduled
+     */
+    default List<R> nextInputs(int max) {
+        var inputs = new ArrayList<R>();
+        while (inputs.size() < max) {
+            var input = nextInput();
+            if (input.isEmpty()) {
+                break;
+            }
+            inputs.add(input.get());
+        }
+        return inputs;
+    }
 }
@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.pollingtaskexec;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs actions after a delay, with a precision of one tick. The actions are kept in a ring of buckets, one for each tick, so that scheduling an action and finding the actions that are due take
+ * constant time, however many actions are waiting. All actions run on a single thread, so they should be short, e.g. hand a task over to a {@link TaskScheduler}.
+ */
+@Slf4j
+final class TimingWheel {
+    private final long tickNanos;
+    private final List<Queue<Timeout>> buckets;
+    private final int mask;
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private final ScheduledExecutorService ticker;
+    private final long startNanos = System.nanoTime();
+    // Only accessed by the ticker thread
+    private long currentTick;
+
+    private static class Timeout {
+        private final long deadlineNanos;
+        private final Runnable action;
+        private long deadlineTick;
+
+        private Timeout(long deadlineNanos, Runnable action) {
+            this.deadlineNanos = deadlineNanos;
+            this.action = action;
+        }
+    }
+
+    /**
+     * @param name         the name of the ticker thread
+     * @param tickDuration the duration of a tick
+     * @param wheelSize    the number of buckets, rounded up to a power of two; actions that are due more than one round of the wheel ahead wait in their bucket for the next round
+     */
+    TimingWheel(String name, Duration tickDuration, int wheelSize) {
+        if (tickDuration.isNegative() || tickDuration.isZero()) {
+            throw new IllegalArgumentException("tickDuration must be positive");
+        }
+        this.tickNanos = tickDuration.toNanos();
+        int size = Integer.highestOneBit(Math.max(1, wheelSize - 1)) << 1;
+        this.buckets = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            buckets.add(new ArrayDeque<>());
+        }
+        this.mask = size - 1;
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            var t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void start() {
+        ticker.scheduleAtFixedRate(this::advance, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Schedules an action to run after the given delay, or at the end of the first tick after it.
+     *
+     * @param delay  the delay
+     * @param action the action
+     */
+    void schedule(Duration delay, Runnable action) {
+        pending.incrementAndGet();
+        added.add(new Timeout(System.nanoTime() + delay.toNanos(), action));
+    }
+
+    /**
+     * Returns the number of actions that have not run yet.
+     *
+     * @return the number of pending actions
+     */
+    int size() {
+        return pending.get();
+    }
+
+    /**
+     * Stops the ticker thread and returns the actions that have not run yet.
+     *
+     * @return the pending actions
+     */
+    List<Runnable> stop() {
+        ticker.shutdownNow();
+        try {
+            ticker.awaitTermination(1, TimeUnit.SECONDS);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        var actions = new ArrayList<Runnable>();
+        added.forEach(timeout -> actions.add(timeout.action));
+        buckets.forEach(bucket -> bucket.forEach(timeout -> actions.add(timeout.action)));
+        return actions;
+    }
+
+    private void advance() {
+        long targetTick = (System.nanoTime() - startNanos) / tickNanos;
+        Timeout timeout;
+        while ((timeout = added.poll()) != null) {
+            // Round up, so that an action never runs early; an action that is already due runs in the next tick
+            timeout.deadlineTick = Math.max(currentTick + 1, (timeout.deadlineNanos - startNanos + tickNanos - 1) / tickNanos);
+            buckets.get((int) (timeout.deadlineTick & mask)).add(timeout);
+        }
+        // Catch up if the ticker thread was delayed, but never go around the wheel more than once
+        for (long tick = Math.max(currentTick + 1, targetTick - mask); tick <= targetTick; tick++) {
+            expire(buckets.get((int) (tick & mask)), tick);
+        }
+        currentTick = Math.max(currentTick, targetTick);
+    }
+
+    private void expire(Queue<Timeout> bucket, long tick) {
+        for (int n = bucket.size(); n > 0; n--) {
+            var timeout = bucket.poll();
+            if (timeout.deadlineTick <= tick) {
+                pending.decrementAndGet();
+                try {
+                    timeout.action.run();
+                }
+                catch (RuntimeException e) {
+                    log.error("Error running scheduled action", e);
+                }
+            }
+            else {
+                bucket.add(timeout);
+            }
+        }
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.ruleengine;
+
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+/**
+ * Artifacts of a bag that are shared by the rules that validate it, such as parsed manifests, metadata documents or file listings. The rule engine creates a context for each bag it validates, and
+ * closes it when the validation is done. Each artifact is identified by a {@link Key}, which also knows how to compute the artifact. It is computed when a rule asks for it for the first time, and
+ * the result is then returned to all rules that ask for it. This is thread-safe: if several rules ask for the same artifact at the same time, it is computed once and the other rules wait for the
+ * result. If the computation fails, the same exception is thrown to every rule that asks for the artifact.
+ * <p>
+ * Example:
+ * <pre>
+ *     static final BagContext.Key&lt;Document&gt; DDM = BagContext.key("ddm", (bag, context) -&gt; xmlReader.readXmlFile(bag.resolve("metadata/dataset.xml")));
+ *
+ *     ContextualBagValidatorRule rule = (bag, context) -&gt; {
+ *         var ddm = context.get(DDM);
+ *         ...
+ *     };
+ * </pre>
+ */
+@Slf4j
+public final class BagContext implements AutoCloseable {
+    @Getter
+    private final Path bag;
+    private final ConcurrentMap<Key<?>, FutureTask<?>> artifacts = new ConcurrentHashMap<>();
+
+    /**
+     * Computes an artifact of a bag.
+     *
+     * @param <T> the type of the artifact
+     */
+    @FunctionalInterface
+    public interface Loader<T> {
+        /**
+         * @param bag     the path of the bag
+         * @param context the context, to get other artifacts from
+         * @return the artifact
+         * @throws Exception if the artifact could not be computed
+         */
+        T load(Path bag, BagContext context) throws Exception;
+    }
+
+    /**
+     * Identifies an artifact and knows how to compute it. Keys are compared by identity, so each key should be created once, e.g. as a constant.
+     *
+     * @param <T> the type of the artifact
+     */
+    public static final class Key<T> {
+        private final String name;
+        private final Loader<T> loader;
+
+        private Key(String name, Loader<T> loader) {
+            this.name = name;
+            this.loader = loader;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    public BagContext(Path bag) {
+        this.bag = bag;
+    }
+
+    /**
+     * Creates a key for an artifact.
+     *
+     * @param name   the name of the artifact, used in log messages
+     * @param loader computes the artifact
+     * @param <T>    the type of the artifact
+     * @return the key
+     */
+    public static <T> Key<T> key(String name, Loader<T> loader) {
+        return new Key<>(name, loader);
+    }
+
+    /**
+     * Returns an artifact, computing it if no rule has asked for it before. A loader may ask for other artifacts, but not for its own one, directly or indirectly.
+     *
+     * @param key the key of the artifact
+     * @param <T> the type of the artifact
+     * @return the artifact
+     * @throws Exception the exception thrown by the loader
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(Key<T> key) throws Exception {
+        var task = (FutureTask<T>) artifacts.get(key);
+        if (task == null) {
+            var newTask = new FutureTask<>(() -> {
+                log.debug("Computing {} of bag {}", key, bag);
+                return key.loader.load(bag, this);
+            });
+            task = (FutureTask<T>) artifacts.putIfAbsent(key, newTask);
+            if (task == null) {
+                task = newTask;
+                task.run();
+            }
+        }
+        try {
+            return task.get();
+        }
+        catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Releases the artifacts. Artifacts that are {@link AutoCloseable} are closed.
+     */
+    @Override
+    public void close() {
+        var tasks = new ArrayList<>(artifacts.values());
+        artifacts.clear();
+        for (var task : tasks) {
+            try {
+                if (task.isDone() && task.get() instanceof AutoCloseable) {
+                    ((AutoCloseable) task.get()).close();
+                }
+            }
+            catch (ExecutionException e) {
+                // the computation failed, so there is nothing to close
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            catch (Exception e) {
+                log.warn("Could not close artifact of bag {}", bag, e);
+            }
+        }
+    }
+}
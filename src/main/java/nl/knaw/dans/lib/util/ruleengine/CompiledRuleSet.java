@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.ruleengine;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * A rule set that is prepared for validating bags, see {@link RuleEngine#compileRuleSet(List)}. The dependencies of the rules are resolved to their positions in the rule list, and the rules are put
+ * in an order in which each rule comes after its dependencies, so that a bag can be validated by walking through the rules once, without looking up rule numbers. A compiled rule set is immutable
+ * and can be used to validate any number of bags, also concurrently.
+ */
+public final class CompiledRuleSet {
+    private final List<NumberedRule> rules;
+    // the positions of the dependencies of each rule; dependencies that do not exist are left out
+    private final int[][] dependencies;
+    // the number of dependencies of each rule, including the ones that do not exist
+    private final int[] dependencyCounts;
+    // the positions of the rules that depend on each rule
+    private final int[][] dependents;
+    // the positions of the rules in an order in which each rule comes after its dependencies; rules that can never be executed are left out
+    private final int[] order;
+
+    private CompiledRuleSet(List<NumberedRule> rules, int[][] dependencies, int[] dependencyCounts, int[][] dependents, int[] order) {
+        this.rules = rules;
+        this.dependencies = dependencies;
+        this.dependencyCounts = dependencyCounts;
+        this.dependents = dependents;
+        this.order = order;
+    }
+
+    /**
+     * Compiles a rule set without checking it. Rules that depend on a rule that does not exist, or that are part of a circular dependency, are left out of the execution order. If a rule number
+     * occurs more than once, dependencies on it refer to the first rule with that number.
+     *
+     * @param rules the rule set
+     * @return the compiled rule set
+     */
+    public static CompiledRuleSet compile(List<NumberedRule> rules) {
+        var ruleList = List.copyOf(rules);
+        int n = ruleList.size();
+        var positions = new HashMap<String, Integer>();
+        for (int i = 0; i < n; i++) {
+            positions.putIfAbsent(ruleList.get(i).getNumber(), i);
+        }
+
+        var dependencies = new int[n][];
+        var dependencyCounts = new int[n];
+        var dependentCounts = new int[n];
+        for (int i = 0; i < n; i++) {
+            var numbers = ruleList.get(i).getDependencies() == null ? List.<String> of() : ruleList.get(i).getDependencies();
+            dependencies[i] = numbers.stream()
+                .filter(positions::containsKey)
+                .mapToInt(positions::get)
+                .toArray();
+            dependencyCounts[i] = numbers.size();
+            for (int dependency : dependencies[i]) {
+                dependentCounts[dependency]++;
+            }
+        }
+
+        var dependents = new int[n][];
+        for (int i = 0; i < n; i++) {
+            dependents[i] = new int[dependentCounts[i]];
+            dependentCounts[i] = 0;
+        }
+        for (int i = 0; i < n; i++) {
+            for (int dependency : dependencies[i]) {
+                dependents[dependency][dependentCounts[dependency]++] = i;
+            }
+        }
+
+        return new CompiledRuleSet(ruleList, dependencies, dependencyCounts, dependents, topologicalOrder(dependencyCounts, dependents));
+    }
+
+    // The order of the rounds of the original rule engine: each round walks through the rule list and executes the rules whose dependencies have been executed, including the rules further down the
+    // list that became executable earlier in the same round
+    private static int[] topologicalOrder(int[] dependencyCounts, int[][] dependents) {
+        var remaining = dependencyCounts.clone();
+        var order = new int[remaining.length];
+        int size = 0;
+        var thisRound = new PriorityQueue<Integer>();
+        var nextRound = new PriorityQueue<Integer>();
+        for (int i = 0; i < remaining.length; i++) {
+            if (remaining[i] == 0) {
+                thisRound.add(i);
+            }
+        }
+        while (!thisRound.isEmpty()) {
+            while (!thisRound.isEmpty()) {
+                int position = thisRound.poll();
+                order[size++] = position;
+                for (int dependent : dependents[position]) {
+                    if (--remaining[dependent] == 0) {
+                        (dependent > position ? thisRound : nextRound).add(dependent);
+                    }
+                }
+            }
+            var emptyRound = thisRound;
+            thisRound = nextRound;
+            nextRound = emptyRound;
+        }
+        return size == order.length ? order : Arrays.copyOf(order, size);
+    }
+
+    /**
+     * Returns the rules, in the order in which they were given.
+     *
+     * @return the rules
+     */
+    public List<NumberedRule> getRules() {
+        return rules;
+    }
+
+    /**
+     * Returns the rules that will never be executed, because they depend on a rule that does not exist or are part of a circular dependency.
+     *
+     * @return the rules that cannot be executed
+     */
+    public List<NumberedRule> getUnexecutableRules() {
+        var executable = new boolean[rules.size()];
+        for (int i : order) {
+            executable[i] = true;
+        }
+        var unexecutable = new ArrayList<NumberedRule>();
+        for (int i = 0; i < rules.size(); i++) {
+            if (!executable[i]) {
+                unexecutable.add(rules.get(i));
+            }
+        }
+        return unexecutable;
+    }
+
+    /**
+     * Finds the circular dependencies in the rule set. Each cycle is returned as the rule numbers along the cycle, starting and ending with the same rule, e.g. {@code [1.2, 1.3, 1.2]} if rule 1.2
+     * depends on rule 1.3 and rule 1.3 depends on rule 1.2.
+     *
+     * @return the cycles, empty if there are none
+     */
+    public List<List<String>> findCycles() {
+        var cycles = new ArrayList<List<String>>();
+        // 0: not visited, 1: on the current path, 2: done
+        var state = new int[rules.size()];
+        var path = new ArrayList<Integer>();
+        for (int i = 0; i < rules.size(); i++) {
+            if (state[i] == 0) {
+                findCycles(i, state, path, cycles);
+            }
+        }
+        return cycles;
+    }
+
+    private void findCycles(int position, int[] state, List<Integer> path, List<List<String>> cycles) {
+        state[position] = 1;
+        path.add(position);
+        for (int dependency : dependencies[position]) {
+            if (state[dependency] == 1) {
+                var cycle = new ArrayList<String>();
+                for (int i = path.indexOf(dependency); i < path.size(); i++) {
+                    cycle.add(rules.get(path.get(i)).getNumber());
+                }
+                cycle.add(rules.get(dependency).getNumber());
+                cycles.add(cycle);
+            }
+            else if (state[dependency] == 0) {
+                findCycles(dependency, state, path, cycles);
+            }
+        }
+        path.remove(path.size() - 1);
+        state[position] = 2;
+    }
+
+    /**
+     * Returns the depth of each rule that can be executed: 0 for a rule without dependencies, and otherwise one more than the greatest depth of its dependencies. Rules with the same depth do not
+     * depend on each other.
+     *
+     * @return the depths by rule number
+     */
+    public Map<String, Integer> getDepths() {
+        var depths = new int[rules.size()];
+        var result = new LinkedHashMap<String, Integer>();
+        for (int position : order) {
+            for (int dependency : dependencies[position]) {
+                depths[position] = Math.max(depths[position], depths[dependency] + 1);
+            }
+            result.put(rules.get(position).getNumber(), depths[position]);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the critical path of the rule set: the chain of dependent rules that takes the longest to run, according to the given durations, e.g. the mean durations observed while validating
+     * earlier bags. Rules without a duration count as taking no time. Of chains that take equally long, the one with the most rules is returned, so without any durations the result is the longest
+     * chain of rules.
+     *
+     * @param durations the durations of the rules by rule number
+     * @return the critical path
+     */
+    public CriticalPath getCriticalPath(Map<String, Duration> durations) {
+        if (order.length == 0) {
+            return new CriticalPath(List.of(), Duration.ZERO);
+        }
+        // the duration and length of the longest chain ending in each rule, and the previous rule in that chain
+        var chainNanos = new long[rules.size()];
+        var chainLength = new int[rules.size()];
+        var previous = new int[rules.size()];
+        int last = order[0];
+        for (int position : order) {
+            previous[position] = -1;
+            for (int dependency : dependencies[position]) {
+                if (previous[position] == -1 || isLonger(chainNanos[dependency], chainLength[dependency], chainNanos[previous[position]], chainLength[previous[position]])) {
+                    previous[position] = dependency;
+                }
+            }
+            var duration = durations.getOrDefault(rules.get(position).getNumber(), Duration.ZERO).toNanos();
+            chainNanos[position] = duration + (previous[position] == -1 ? 0 : chainNanos[previous[position]]);
+            chainLength[position] = 1 + (previous[position] == -1 ? 0 : chainLength[previous[position]]);
+            if (isLonger(chainNanos[position], chainLength[position], chainNanos[last], chainLength[last])) {
+                last = position;
+            }
+        }
+
+        var path = new ArrayList<NumberedRule>();
+        for (int position = last; position != -1; position = previous[position]) {
+            path.add(rules.get(position));
+        }
+        Collections.reverse(path);
+        return new CriticalPath(path, Duration.ofNanos(chainNanos[last]));
+    }
+
+    private static boolean isLonger(long nanos, int length, long otherNanos, int otherLength) {
+        return nanos > otherNanos || (nanos == otherNanos && length > otherLength);
+    }
+
+    int size() {
+        return rules.size();
+    }
+
+    NumberedRule getRule(int position) {
+        return rules.get(position);
+    }
+
+    int[] getDependencies(int position) {
+        return dependencies[position];
+    }
+
+    int[] getDependents(int position) {
+        return dependents[position];
+    }
+
+    int getDependencyCount(int position) {
+        return dependencyCounts[position];
+    }
+
+    int[] getOrder() {
+        return order;
+    }
+}
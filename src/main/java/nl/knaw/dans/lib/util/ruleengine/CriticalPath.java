@@ -0,0 +1,50 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.ruleengine;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * The longest chain of dependent rules in a rule set, see {@link CompiledRuleSet#getCriticalPath(java.util.Map)}. Because a rule can only start when its dependencies have finished, this chain
+ * determines the minimum time it takes to validate a bag, however many rules run in parallel.
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+public class CriticalPath {
+    private final List<NumberedRule> rules;
+    private final Duration duration;
+
+    CriticalPath(List<NumberedRule> rules, Duration duration) {
+        this.rules = rules;
+        this.duration = duration;
+    }
+
+    /**
+     * Returns the rule numbers of the path, joined with arrows, e.g. {@code "1.1 -> 1.2 -> 2.1"}.
+     *
+     * @return the path as a string
+     */
+    public String format() {
+        return rules.stream().map(NumberedRule::getNumber).collect(Collectors.joining(" -> "));
+    }
+}
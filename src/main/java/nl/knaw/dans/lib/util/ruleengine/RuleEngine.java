@@ -24,7 +24,7 @@ import java.util.List;
 public interface RuleEngine {
 
     /**
-     * Check that a rule set is internally consistent. It checks for duplicate rules and for unresolved dependencies.
+     * Check that a rule set is internally consistent. It checks for duplicate rules, for unresolved dependencies and for circular dependencies.
      *
      * @param rules the rule set
      * @throws RuleEngineConfigurationException if the rule set is not consistent
@@ -32,7 +32,21 @@ public interface RuleEngine {
     void validateRuleSet(List<NumberedRule> rules) throws RuleEngineConfigurationException;
 
     /**
-     * Validates the given bag against a given rule set.
+     * Checks that a rule set is internally consistent, like {@link #validateRuleSet(List)}, and compiles it. The compiled rule set can be used to validate any number of bags against the rule set,
+     * without preparing it again for each bag. The default implementation calls {@link #validateRuleSet(List)} and then {@link CompiledRuleSet#compile(List)}.
+     *
+     * @param rules the rule set
+     * @return the compiled rule set
+     * @throws RuleEngineConfigurationException if the rule set is not consistent
+     */
+    default CompiledRuleSet compileRuleSet(List<NumberedRule> rules) throws RuleEngineConfigurationException {
+        validateRuleSet(rules);
+        return CompiledRuleSet.compile(rules);
+    }
+
+    /**
+     * Validates the given bag against a given rule set. The rule set is compiled for this bag only; to validate many bags against the same rule set, use
+     * {@link #validateBag(Path, CompiledRuleSet)}.
      *
      * @param bag   the bag to validate
      * @param rules the rule set
@@ -41,4 +55,17 @@ public interface RuleEngine {
      */
     List<RuleValidationResult> validateBag(Path bag, List<NumberedRule> rules) throws Exception;
 
+    /**
+     * Validates the given bag against a compiled rule set. The default implementation validates the bag against the rules of the compiled rule set with {@link #validateBag(Path, List)}, so
+     * implementations that do not override it gain nothing from compiling the rule set.
+     *
+     * @param bag     the bag to validate
+     * @param ruleSet the compiled rule set, as returned by {@link #compileRuleSet(List)}
+     * @return the validation result
+     * @throws Exception if the validation could not be completed successfully
+     */
+    default List<RuleValidationResult> validateBag(Path bag, CompiledRuleSet ruleSet) throws Exception {
+        return validateBag(bag, ruleSet.getRules());
+    }
+
 }
@@ -15,23 +15,73 @@
  */
 package nl.knaw.dans.lib.util.ruleengine;
 
+import com.codahale.metrics.MetricRegistry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
+/**
+ * Default implementation of {@link RuleEngine}. The rules of a bag are run on the given {@link Executor}, as soon as all their dependencies have succeeded, so that independent rules run in
+ * parallel and the time it takes to validate a bag comes down to the longest chain of dependent rules. The executor should have enough threads to run the independent rules at the same time, or
+ * start a (virtual) thread for each rule, e.g. {@code Executors.newVirtualThreadPerTaskExecutor()} on Java 21 or later. The default constructor runs the rules one after the other on the calling
+ * thread.
+ */
 public class RuleEngineImpl implements RuleEngine {
     private static final Logger log = LoggerFactory.getLogger(RuleEngineImpl.class);
 
+    private final Executor executor;
+    private final RuleMetrics metrics;
+
+    public RuleEngineImpl() {
+        this(null);
+    }
+
+    /**
+     * @param executor the executor to run the rules on, or null to run them one after the other on the calling thread
+     */
+    public RuleEngineImpl(Executor executor) {
+        this(executor, null);
+    }
+
+    /**
+     * @param executor       the executor to run the rules on, or null to run them one after the other on the calling thread
+     * @param metricRegistry the registry to publish the wall time, CPU time and allocated bytes of each rule to, see {@link RuleMetrics}, or null
+     */
+    public RuleEngineImpl(Executor executor, MetricRegistry metricRegistry) {
+        this.executor = executor;
+        this.metrics = metricRegistry == null ? null : new RuleMetrics(metricRegistry);
+    }
+
+    /**
+     * Returns the mean wall time of each rule that was executed, as recorded in the metric registry, e.g. to find the critical path of a rule set with
+     * {@link CompiledRuleSet#getCriticalPath(Map)}. The result is empty if the engine has no metric registry.
+     *
+     * @return the mean wall times by rule number
+     */
+    public Map<String, Duration> getObservedDurations() {
+        return metrics == null ? Map.of() : metrics.getMeanWallTimes();
+    }
+
     @Override
     public void validateRuleSet(List<NumberedRule> rules) throws RuleEngineConfigurationException {
+        compileRuleSet(rules);
+    }
+
+    @Override
+    public CompiledRuleSet compileRuleSet(List<NumberedRule> rules) throws RuleEngineConfigurationException {
         // validate each rule number is unique
         var duplicateRules = getDuplicateRules(rules);
 
@@ -49,135 +99,291 @@ public class RuleEngineImpl implements RuleEngine {
                 "Some rules depend on other rules that do not exist: %s", String.join(", ", unresolvedDependencies)
             ));
         }
+
+        var ruleSet = CompiledRuleSet.compile(rules);
+
+        // make sure no rule depends on itself, directly or indirectly
+        var cycles = ruleSet.findCycles();
+
+        if (!cycles.isEmpty()) {
+            throw new RuleEngineConfigurationException(String.format(
+                "Circular dependencies found: %s", cycles.stream().map(cycle -> String.join(" -> ", cycle)).collect(Collectors.joining(", "))
+            ));
+        }
+
+        var depths = ruleSet.getDepths();
+        log.debug("Rule depths: {}", depths);
+        log.info("Rule set has {} rules in {} levels; longest chain: {}", rules.size(), depths.values().stream().mapToInt(d -> d + 1).max().orElse(0),
+            ruleSet.getCriticalPath(Map.of()).format());
+
+        return ruleSet;
     }
 
     @Override
     public List<RuleValidationResult> validateBag(Path bag, List<NumberedRule> rules) throws Exception {
-        final var ruleResults = new HashMap<String, RuleValidationResult>();
-        final var rulesToExecute = rules;
+        return validateBag(bag, CompiledRuleSet.compile(rules));
+    }
 
-        // create a copy, because we will modify this list
-        var remainingRules = new ArrayList<>(rulesToExecute);
+    @Override
+    public List<RuleValidationResult> validateBag(Path bag, CompiledRuleSet ruleSet) throws Exception {
+        final var ruleResults = new RuleValidationResult[ruleSet.size()];
+        // all rules have finished when the validation returns, so the artifacts can be released then
+        try (var context = new BagContext(bag)) {
+            if (executor == null) {
+                validateSequentially(context, ruleSet, ruleResults);
+            }
+            else {
+                new BagValidation(context, ruleSet, ruleResults).run();
+            }
+        }
 
-        while (!remainingRules.isEmpty()) {
-            var toRemove = new HashSet<NumberedRule>();
+        // rules that can never be executed and that were not skipped because of a failed dependency have no result
+        var remainingRules = IntStream.range(0, ruleSet.size())
+            .filter(position -> ruleResults[position] == null)
+            .mapToObj(ruleSet::getRule)
+            .collect(Collectors.toList());
+        if (!remainingRules.isEmpty()) {
+            log.warn("No more rules can be executed, but there are still rules to be checked; most likely a dependency configuration error!");
 
             for (var rule : remainingRules) {
-                var number = rule.getNumber();
+                log.warn(" - Rule {} is yet to be executed", rule);
+            }
+        }
 
-                // will never be processed, so skip it and remove it from the remaining rules
-                if (shouldBeSkipped(rule, ruleResults)) {
-                    log.debug("Skipping task {} because dependencies are not successful", rule.getNumber());
-                    ruleResults.put(number, new RuleValidationResult(number, RuleValidationResult.RuleValidationResultStatus.SKIPPED));
-                    toRemove.add(rule);
-                }
-                else if (canBeExecuted(rule, ruleResults)) {
-                    log.debug("Executing task {}", rule.getNumber());
-                    var response = rule.getRule().validate(bag);
-
-                    log.debug("Task result: {}", response.getStatus());
-                    RuleValidationResult ruleValidationResult = switch (response.getStatus()) {
-                        case SUCCESS -> new RuleValidationResult(number, RuleValidationResult.RuleValidationResultStatus.SUCCESS);
-                        case SKIP_DEPENDENCIES -> new RuleValidationResult(number, RuleValidationResult.RuleValidationResultStatus.SUCCESS, true);
-                        case ERROR -> new RuleValidationResult(number, RuleValidationResult.RuleValidationResultStatus.FAILURE, formatErrorMessages(response.getErrorMessages()));
-                    };
-
-                    ruleResults.put(number, ruleValidationResult);
-
-                    if (response.getException() != null) {
-                        // Log this at debug level, as an Exception that was caught by the rule implementation
-                        // is not necessarily an error in the rule engine itself, and will be reported as part of the RuleValidationResult
-                        log.debug("Rule provided an exception while executing", response.getException());
-                    }
+        // TODO this does not belong here, but it would be nice to log the results of the validation
+        reportOnBag(ruleSet.getRules(), ruleResults);
 
-                    toRemove.add(rule);
-                }
-                else {
-                    log.debug("Skipping rule {} because its dependencies have not yet executed", rule);
+        var results = new ArrayList<RuleValidationResult>(ruleResults.length);
+        for (var result : ruleResults) {
+            if (result != null) {
+                results.add(result);
+            }
+        }
+        return results;
+    }
+
+    // walks through the rules in dependency order, so the results of the dependencies of each rule are known when it is reached
+    private void validateSequentially(BagContext context, CompiledRuleSet ruleSet, RuleValidationResult[] ruleResults) throws Exception {
+        var order = ruleSet.getOrder();
+        for (int position : order) {
+            var number = ruleSet.getRule(position).getNumber();
+            if (isSatisfied(ruleSet.getDependencies(position), ruleResults)) {
+                log.debug("Executing task {}", number);
+                var usage = ThreadResourceUsage.start();
+                var response = validate(ruleSet.getRule(position), context);
+                usage.stop();
+                ruleResults[position] = toRuleValidationResult(number, response, usage);
+            }
+            else {
+                log.debug("Skipping task {} because dependencies are not successful", number);
+                ruleResults[position] = new RuleValidationResult(number, RuleValidationResult.RuleValidationResultStatus.SKIPPED);
+            }
+        }
+
+        // rules that are not in the order are skipped as well if one of their dependencies was not successful, like in the parallel validation
+        if (order.length < ruleSet.size()) {
+            for (int position : order) {
+                if (!isSatisfied(ruleResults[position])) {
+                    skipDependents(ruleSet, position, ruleResults);
                 }
             }
+        }
+    }
+
+    private RuleResult validate(NumberedRule rule, BagContext context) throws Exception {
+        if (rule.getRule() instanceof ContextualBagValidatorRule) {
+            return ((ContextualBagValidatorRule) rule.getRule()).validate(context.getBag(), context);
+        }
+        return rule.getRule().validate(context.getBag());
+    }
 
-            remainingRules.removeAll(toRemove);
+    private RuleValidationResult toRuleValidationResult(String number, RuleResult response, ThreadResourceUsage usage) {
+        log.debug("Task result: {}", response.getStatus());
+        RuleValidationResult ruleValidationResult = switch (response.getStatus()) {
+            case SUCCESS -> new RuleValidationResult(number, RuleValidationResult.RuleValidationResultStatus.SUCCESS);
+            case SKIP_DEPENDENCIES -> new RuleValidationResult(number, RuleValidationResult.RuleValidationResultStatus.SUCCESS, true);
+            case ERROR -> new RuleValidationResult(number, RuleValidationResult.RuleValidationResultStatus.FAILURE, formatErrorMessages(response.getErrorMessages()));
+        };
+
+        if (response.getException() != null) {
+            // Log this at debug level, as an Exception that was caught by the rule implementation
+            // is not necessarily an error in the rule engine itself, and will be reported as part of the RuleValidationResult
+            log.debug("Rule provided an exception while executing", response.getException());
+        }
 
-            if (toRemove.isEmpty()) {
-                log.warn("No rules executed this round, but there are still rules to be checked; most likely a dependency configuration error!");
+        ruleValidationResult = usage.applyTo(ruleValidationResult);
+        if (metrics != null) {
+            metrics.ruleExecuted(ruleValidationResult);
+        }
 
-                for (var rule : remainingRules) {
-                    log.warn(" - Rule {} is yet to be executed", rule);
-                }
+        return ruleValidationResult;
+    }
 
-                break;
+    private boolean isSatisfied(int[] dependencies, RuleValidationResult[] ruleResults) {
+        for (int dependency : dependencies) {
+            if (!isSatisfied(ruleResults[dependency])) {
+                return false;
             }
         }
+        return true;
+    }
 
-        // TODO this does not belong here, but it would be nice to log the results of the validation
-        reportOnBag(rulesToExecute, ruleResults);
+    // returns true if the rules that depend on a rule with this result can be executed
+    private boolean isSatisfied(RuleValidationResult result) {
+        return RuleValidationResult.RuleValidationResultStatus.SUCCESS.equals(result.getStatus()) && !result.isShouldSkipDependencies();
+    }
 
-        return rulesToExecute.stream()
-            .map(rule -> ruleResults.get(rule.getNumber()))
-            .filter(Objects::nonNull)
-            .collect(Collectors.toList());
+    private static class Completion {
+        private final int position;
+        private final RuleResult response;
+        private final ThreadResourceUsage usage;
+        private final Throwable exception;
+
+        private Completion(int position, RuleResult response, ThreadResourceUsage usage, Throwable exception) {
+            this.position = position;
+            this.response = response;
+            this.usage = usage;
+            this.exception = exception;
+        }
     }
 
-    // returns true if all dependencies are marked as SUCCESS
-    private boolean canBeExecuted(NumberedRule rule, Map<String, RuleValidationResult> results) {
-        if (rule.getDependencies() != null && !rule.getDependencies().isEmpty()) {
-            for (var dependency : rule.getDependencies()) {
-                var result = results.get(dependency);
+    /**
+     * The validation of one bag on the executor. A rule is handed to the executor as soon as all its dependencies have succeeded, and it is marked as skipped as soon as one of its dependencies has
+     * failed, was skipped or asked to skip its dependencies. The results are processed on the calling thread only, so the executor threads only run the rules.
+     */
+    private class BagValidation {
+        private final BagContext context;
+        private final CompiledRuleSet ruleSet;
+        private final RuleValidationResult[] ruleResults;
+        private final int[] unfinishedDependencies;
+        private final BlockingQueue<Completion> completions = new LinkedBlockingQueue<>();
+        private final AtomicReference<Throwable> firstException = new AtomicReference<>();
+        private int running;
+
+        private BagValidation(BagContext context, CompiledRuleSet ruleSet, RuleValidationResult[] ruleResults) {
+            this.context = context;
+            this.ruleSet = ruleSet;
+            this.ruleResults = ruleResults;
+            this.unfinishedDependencies = new int[ruleSet.size()];
+            for (int position = 0; position < ruleSet.size(); position++) {
+                unfinishedDependencies[position] = ruleSet.getDependencyCount(position);
+            }
+        }
 
-                // if the parent was skipped or failed, return true
-                if (result == null || RuleValidationResult.RuleValidationResultStatus.SKIPPED.equals(result.getStatus()) || RuleValidationResult.RuleValidationResultStatus.FAILURE.equals(
-                    result.getStatus())) {
-                    return false;
+        void run() throws Exception {
+            for (int position = 0; position < ruleSet.size(); position++) {
+                if (unfinishedDependencies[position] == 0) {
+                    submit(position);
                 }
             }
-        }
 
-        return true;
-    }
+            while (running > 0) {
+                var completion = completions.take();
+                running--;
+                if (completion.exception != null) {
+                    // the first exception is rethrown when the rules that are still running have finished
+                    continue;
+                }
+                var position = completion.position;
+                var result = toRuleValidationResult(ruleSet.getRule(position).getNumber(), completion.response, completion.usage);
+                ruleResults[position] = result;
+                if (isSatisfied(result)) {
+                    releaseDependents(position);
+                }
+                else {
+                    skipDependents(ruleSet, position, ruleResults);
+                }
+            }
 
-    // return true if one of its dependencies was skipped, or it has failed
-    private boolean shouldBeSkipped(NumberedRule rule, Map<String, RuleValidationResult> results) {
-        if (rule.getDependencies() != null && !rule.getDependencies().isEmpty()) {
-            for (var dependency : rule.getDependencies()) {
-                var result = results.get(dependency);
+            // errors are rethrown as they are, so that they reach the caller like they would without an executor
+            var exception = firstException.get();
+            if (exception instanceof Error) {
+                throw (Error) exception;
+            }
+            if (exception != null) {
+                throw (Exception) exception;
+            }
+        }
 
-                if (result != null) {
-                    // if the parent was skipped or failed, return true
-                    if (RuleValidationResult.RuleValidationResultStatus.SKIPPED.equals(result.getStatus()) || RuleValidationResult.RuleValidationResultStatus.FAILURE.equals(result.getStatus())
-                        || result.isShouldSkipDependencies()) {
-                        return true;
+        private void submit(int position) {
+            if (firstException.get() != null) {
+                return;
+            }
+            var rule = ruleSet.getRule(position);
+            log.debug("Executing task {}", rule.getNumber());
+            running++;
+            try {
+                executor.execute(() -> {
+                    try {
+                        var usage = ThreadResourceUsage.start();
+                        var response = validate(rule, context);
+                        usage.stop();
+                        completions.add(new Completion(position, response, usage, null));
                     }
+                    catch (Throwable e) {
+                        // a completion must always be posted, or the calling thread waits for it forever
+                        firstException.compareAndSet(null, e);
+                        completions.add(new Completion(position, null, null, e));
+                    }
+                });
+            }
+            catch (RejectedExecutionException e) {
+                running--;
+                firstException.compareAndSet(null, e);
+            }
+        }
+
+        private void releaseDependents(int position) {
+            for (int dependent : ruleSet.getDependents(position)) {
+                if (--unfinishedDependencies[dependent] == 0 && ruleResults[dependent] == null) {
+                    submit(dependent);
                 }
             }
         }
+    }
 
-        return false;
+    // marks the rules that depend on a rule as skipped, and the rules that depend on those, etc., including rules that can never be executed because of another dependency
+    private void skipDependents(CompiledRuleSet ruleSet, int position, RuleValidationResult[] ruleResults) {
+        var toSkip = new ArrayDeque<Integer>();
+        toSkip.push(position);
+        while (!toSkip.isEmpty()) {
+            for (int dependent : ruleSet.getDependents(toSkip.pop())) {
+                if (ruleResults[dependent] == null) {
+                    var number = ruleSet.getRule(dependent).getNumber();
+                    log.debug("Skipping task {} because dependencies are not successful", number);
+                    ruleResults[dependent] = new RuleValidationResult(number, RuleValidationResult.RuleValidationResultStatus.SKIPPED);
+                    toSkip.push(dependent);
+                }
+            }
+        }
     }
 
     private String padLeft(String s, int amount) {
         return String.format("%" + amount + "s", s);
     }
 
-    private void reportOnBag(List<NumberedRule> rules, Map<String, RuleValidationResult> ruleResults) {
+    private void reportOnBag(List<NumberedRule> rules, RuleValidationResult[] ruleResults) {
         var maxRuleLength = rules.stream()
             .map(r -> r.getNumber().length())
             .max(Integer::compare)
             .orElse(0);
 
-        var resultsAsString = rules.stream()
-            .map(rule -> {
-                var result = ruleResults.get(rule.getNumber());
+        var resultsAsString = IntStream.range(0, rules.size())
+            .mapToObj(position -> {
+                var rule = rules.get(position);
+                var result = ruleResults[position];
                 var resultStatus = result == null ? RuleValidationResult.RuleValidationResultStatus.SKIPPED : result.getStatus();
                 var padding = maxRuleLength - rule.getNumber().length() + 1 + resultStatus.toString().length();
 
+                var time = resultStatus.equals(RuleValidationResult.RuleValidationResultStatus.SKIPPED) ? "" : String.format(" (%d ms)", result.getWallTime().toMillis());
+
                 if (resultStatus.equals(RuleValidationResult.RuleValidationResultStatus.FAILURE)) {
-                    return String.format("! Rule %s: %s - %s",
-                        rule.getNumber(), padLeft(resultStatus.toString(), padding), result.getErrorMessage());
+                    return String.format("! Rule %s: %s%s - %s",
+                        rule.getNumber(), padLeft(resultStatus.toString(), padding), time, result.getErrorMessage());
                 }
                 else {
-                    return String.format("! Rule %s: %s",
-                        rule.getNumber(), padLeft(resultStatus.toString(), padding));
+                    return String.format("! Rule %s: %s%s",
+                        rule.getNumber(), padLeft(resultStatus.toString(), padding), time);
                 }
 
             })
@@ -203,7 +409,7 @@ public class RuleEngineImpl implements RuleEngine {
             .map(NumberedRule::getNumber)
             .collect(Collectors.toSet());
 
-        // this does not check for circular dependencies or self-references
+        // circular dependencies and self-references are checked on the compiled rule set
         for (var rule : rules) {
             if (rule.getDependencies() != null && !keys.containsAll(rule.getDependencies())) {
                 unresolved.add(rule.getNumber());
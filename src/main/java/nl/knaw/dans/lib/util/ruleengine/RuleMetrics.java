@@ -0,0 +1,61 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.ruleengine;
+
+import com.codahale.metrics.MetricRegistry;
+
+import java.time.Duration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The metrics of the rules run by a {@link RuleEngineImpl}. The metric names start with the class name, followed by {@code rules} and the rule number:
+ * <ul>
+ *     <li>{@code wall-time} and {@code cpu-time}: timers of the wall time and CPU time of the rule;</li>
+ *     <li>{@code allocated-bytes}: a histogram of the number of bytes allocated by the rule.</li>
+ * </ul>
+ * CPU time and allocated bytes are only recorded if the JVM supports measuring them.
+ */
+class RuleMetrics {
+    private static final String PREFIX = MetricRegistry.name(RuleEngineImpl.class, "rules");
+    private static final String WALL_TIME = "wall-time";
+
+    private final MetricRegistry registry;
+
+    RuleMetrics(MetricRegistry registry) {
+        this.registry = registry;
+    }
+
+    void ruleExecuted(RuleValidationResult result) {
+        registry.timer(MetricRegistry.name(PREFIX, result.getNumber(), WALL_TIME)).update(result.getWallTime().toNanos(), TimeUnit.NANOSECONDS);
+        if (!result.getCpuTime().isNegative()) {
+            registry.timer(MetricRegistry.name(PREFIX, result.getNumber(), "cpu-time")).update(result.getCpuTime().toNanos(), TimeUnit.NANOSECONDS);
+        }
+        if (result.getAllocatedBytes() >= 0) {
+            registry.histogram(MetricRegistry.name(PREFIX, result.getNumber(), "allocated-bytes")).update(result.getAllocatedBytes());
+        }
+    }
+
+    Map<String, Duration> getMeanWallTimes() {
+        var start = PREFIX + ".";
+        var end = "." + WALL_TIME;
+        var meanWallTimes = new LinkedHashMap<String, Duration>();
+        registry.getTimers((name, metric) -> name.startsWith(start) && name.endsWith(end)).forEach((name, timer) ->
+            meanWallTimes.put(name.substring(start.length(), name.length() - end.length()), Duration.ofNanos(Math.round(timer.getSnapshot().getMean()))));
+        return meanWallTimes;
+    }
+}
@@ -19,8 +19,12 @@ import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.ToString;
 
+import java.time.Duration;
+
 /**
- * This object is used internally by the RuleEngine to keep track of the status of rules executed
+ * This object is used internally by the RuleEngine to keep track of the status of rules executed. For a rule that was executed, it also holds the wall time and CPU time it took, and the number of
+ * bytes it allocated, as measured on the thread that ran it; these are not taken into account by {@link #equals(Object)}. Artifacts of the {@link BagContext} are counted for the rule that first
+ * asked for them. For skipped rules the measurements are zero, and CPU time and allocated bytes are -1 if the JVM does not support measuring them.
  */
 @Getter
 @ToString
@@ -36,25 +40,37 @@ public class RuleValidationResult {
     private final RuleValidationResultStatus status;
     private final String errorMessage;
     private final boolean shouldSkipDependencies;
+    @EqualsAndHashCode.Exclude
+    private final Duration wallTime;
+    @EqualsAndHashCode.Exclude
+    private final Duration cpuTime;
+    @EqualsAndHashCode.Exclude
+    private final long allocatedBytes;
 
     public RuleValidationResult(String number, RuleValidationResultStatus status) {
-        this.number = number;
-        this.status = status;
-        this.errorMessage = null;
-        this.shouldSkipDependencies = false;
+        this(number, status, null, false, Duration.ZERO, Duration.ZERO, 0);
     }
 
     public RuleValidationResult(String number, RuleValidationResultStatus status, String errorMessage) {
-        this.number = number;
-        this.status = status;
-        this.errorMessage = errorMessage;
-        this.shouldSkipDependencies = false;
+        this(number, status, errorMessage, false, Duration.ZERO, Duration.ZERO, 0);
     }
 
     public RuleValidationResult(String number, RuleValidationResultStatus status, boolean shouldSkipDependencies) {
+        this(number, status, null, shouldSkipDependencies, Duration.ZERO, Duration.ZERO, 0);
+    }
+
+    private RuleValidationResult(String number, RuleValidationResultStatus status, String errorMessage, boolean shouldSkipDependencies, Duration wallTime, Duration cpuTime,
+        long allocatedBytes) {
         this.number = number;
         this.status = status;
-        this.errorMessage = null;
+        this.errorMessage = errorMessage;
         this.shouldSkipDependencies = shouldSkipDependencies;
+        this.wallTime = wallTime;
+        this.cpuTime = cpuTime;
+        this.allocatedBytes = allocatedBytes;
+    }
+
+    RuleValidationResult withResourceUsage(Duration wallTime, Duration cpuTime, long allocatedBytes) {
+        return new RuleValidationResult(number, status, errorMessage, shouldSkipDependencies, wallTime, cpuTime, allocatedBytes);
     }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.ruleengine;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.time.Duration;
+
+/**
+ * Measures the wall time, CPU time and allocated bytes of the current thread between {@link #start()} and {@link #stop()}, which must be called on the same thread. CPU time and allocated bytes
+ * are -1 if the JVM does not support measuring them.
+ */
+final class ThreadResourceUsage {
+    private static final ThreadMXBean THREAD_MX_BEAN = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME_SUPPORTED = THREAD_MX_BEAN.isCurrentThreadCpuTimeSupported() && THREAD_MX_BEAN.isThreadCpuTimeEnabled();
+    private static final com.sun.management.ThreadMXBean ALLOCATION_MX_BEAN = allocationMXBean();
+
+    private final long startNanos;
+    private final long startCpuNanos;
+    private final long startAllocatedBytes;
+    private Duration wallTime;
+    private Duration cpuTime;
+    private long allocatedBytes;
+
+    private ThreadResourceUsage() {
+        this.startAllocatedBytes = allocatedBytes();
+        this.startCpuNanos = cpuNanos();
+        this.startNanos = System.nanoTime();
+    }
+
+    static ThreadResourceUsage start() {
+        return new ThreadResourceUsage();
+    }
+
+    void stop() {
+        wallTime = Duration.ofNanos(System.nanoTime() - startNanos);
+        cpuTime = startCpuNanos < 0 ? Duration.ofNanos(-1) : Duration.ofNanos(cpuNanos() - startCpuNanos);
+        allocatedBytes = startAllocatedBytes < 0 ? -1 : allocatedBytes() - startAllocatedBytes;
+    }
+
+    /**
+     * Returns the result with the resources used between the start and the stop.
+     *
+     * @param result the result of the rule
+     * @return the result with the resource usage
+     */
+    RuleValidationResult applyTo(RuleValidationResult result) {
+        return result.withResourceUsage(wallTime, cpuTime, allocatedBytes);
+    }
+
+    private static long cpuNanos() {
+        return CPU_TIME_SUPPORTED ? THREAD_MX_BEAN.getCurrentThreadCpuTime() : -1;
+    }
+
+    private static long allocatedBytes() {
+        return ALLOCATION_MX_BEAN == null ? -1 : ALLOCATION_MX_BEAN.getCurrentThreadAllocatedBytes();
+    }
+
+    private static com.sun.management.ThreadMXBean allocationMXBean() {
+        if (THREAD_MX_BEAN instanceof com.sun.management.ThreadMXBean) {
+            var bean = (com.sun.management.ThreadMXBean) THREAD_MX_BEAN;
+            if (bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled()) {
+                return bean;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.inbox;
+
+import nl.knaw.dans.lib.util.AbstractTestWithTestDir;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class DirectorySnapshotTest extends AbstractTestWithTestDir {
+
+    @Test
+    public void scan_reports_only_new_children() throws Exception {
+        Files.createFile(testDir.resolve("a"));
+        Files.createFile(testDir.resolve("b"));
+        var snapshot = new DirectorySnapshot(testDir);
+        List<Path> created = new ArrayList<>();
+
+        snapshot.scan(created::add);
+        assertThat(created).containsExactlyInAnyOrder(testDir.resolve("a"), testDir.resolve("b"));
+
+        created.clear();
+        Files.createFile(testDir.resolve("c"));
+        snapshot.scan(created::add);
+        assertThat(created).containsExactly(testDir.resolve("c"));
+        assertThat(snapshot.size()).isEqualTo(3);
+    }
+
+    @Test
+    public void scan_forgets_deleted_children() throws Exception {
+        Files.createFile(testDir.resolve("a"));
+        var snapshot = new DirectorySnapshot(testDir);
+        snapshot.scan(p -> {
+        });
+
+        Files.delete(testDir.resolve("a"));
+        snapshot.scan(p -> {
+        });
+        assertThat(snapshot.contains("a")).isFalse();
+
+        // A recreated child is reported again
+        List<Path> created = new ArrayList<>();
+        Files.createFile(testDir.resolve("a"));
+        snapshot.scan(created::add);
+        assertThat(created).containsExactly(testDir.resolve("a"));
+    }
+
+    @Test
+    public void add_and_remove_keep_the_snapshot_consistent_while_growing() {
+        var snapshot = new DirectorySnapshot(testDir);
+        for (int i = 0; i < 10_000; i++) {
+            assertThat(snapshot.add("item-" + i)).isTrue();
+        }
+        for (int i = 0; i < 10_000; i += 2) {
+            assertThat(snapshot.remove("item-" + i)).isTrue();
+        }
+        for (int i = 0; i < 10_000; i++) {
+            assertThat(snapshot.contains("item-" + i)).isEqualTo(i % 2 == 1);
+        }
+        assertThat(snapshot.add("item-1")).isFalse();
+        assertThat(snapshot.size()).isEqualTo(5_000);
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.inbox;
+
+import nl.knaw.dans.lib.util.AbstractTestWithTestDir;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+public class InboxClaimsTest extends AbstractTestWithTestDir {
+    private Path inboxDir;
+    private Path claimDir;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        super.setUp();
+        inboxDir = Files.createDirectory(testDir.resolve("inbox"));
+        claimDir = Files.createDirectory(testDir.resolve("claims"));
+    }
+
+    @Test
+    public void item_can_only_be_claimed_once() throws Exception {
+        Path item = Files.createDirectory(inboxDir.resolve("item"));
+        var claims1 = new InboxClaims(inboxDir, claimDir, "node1", 60_000, 1);
+        var claims2 = new InboxClaims(inboxDir, claimDir, "node2", 60_000, 1);
+        claims1.open();
+        claims2.open();
+
+        assertThat(claims1.claim(item)).isEqualTo(claimDir.resolve("node1/item"));
+        assertThatThrownBy(() -> claims2.claim(item)).isInstanceOf(NoSuchFileException.class);
+        assertThat(claimDir.resolve("node1/item")).isDirectory();
+    }
+
+    @Test
+    public void claims_of_node_with_expired_lease_are_moved_back_into_inbox() throws Exception {
+        Files.createDirectories(claimDir.resolve("crashed/2024/item"));
+        Path lease = Files.createFile(claimDir.resolve("crashed.lease"));
+        Files.setLastModifiedTime(lease, FileTime.fromMillis(System.currentTimeMillis() - 10_000));
+        var claims = new InboxClaims(inboxDir, claimDir, "node1", 5_000, 2);
+        claims.open();
+
+        claims.maintain();
+
+        assertThat(inboxDir.resolve("2024/item")).isDirectory();
+        assertThat(lease).doesNotExist();
+        assertThat(claimDir.resolve("crashed")).doesNotExist();
+        assertThat(claimDir.resolve("node1.lease")).exists();
+    }
+
+    @Test
+    public void claim_directory_inside_inbox_is_rejected() {
+        assertThatThrownBy(() -> new InboxClaims(inboxDir, inboxDir.resolve("claims"), "node1", 60_000, 1)).isInstanceOf(IllegalArgumentException.class);
+    }
+
+    @Test
+    public void two_inboxes_sharing_a_directory_process_each_item_once() throws Exception {
+        List<Path> processed = new CopyOnWriteArrayList<>();
+        InboxTaskFactory taskFactory = item -> () -> processed.add(item);
+        var inbox1 = Inbox.builder().inbox(inboxDir).taskFactory(taskFactory).interval(20).executorService(Executors.newFixedThreadPool(2))
+            .claimDirectory(claimDir).nodeId("node1").build();
+        var inbox2 = Inbox.builder().inbox(inboxDir).taskFactory(taskFactory).interval(20).executorService(Executors.newFixedThreadPool(2))
+            .claimDirectory(claimDir).nodeId("node2").build();
+        inbox1.start();
+        inbox2.start();
+        Thread.sleep(200);
+
+        for (int i = 0; i < 100; i++) {
+            Files.createDirectory(inboxDir.resolve("item" + i));
+        }
+        Thread.sleep(1000);
+
+        assertThat(processed).hasSize(100);
+        assertThat(processed.stream().map(Path::getFileName).distinct()).hasSize(100);
+        assertThat(processed).allMatch(item -> item.startsWith(claimDir.resolve("node1")) || item.startsWith(claimDir.resolve("node2")));
+        assertThat(inboxDir).isEmptyDirectory();
+        inbox1.stop();
+        inbox2.stop();
+    }
+
+    @Test
+    public void item_that_cannot_be_claimed_does_not_hold_up_later_items() throws Exception {
+        // An item with the same name is still in the directory of the node, and cannot be moved back into the inbox either
+        Files.createDirectories(claimDir.resolve("node1/item1"));
+        Files.createDirectory(inboxDir.resolve("item1"));
+        Files.createDirectory(inboxDir.resolve("item2"));
+        List<Path> processed = new CopyOnWriteArrayList<>();
+        var inbox = Inbox.builder().inbox(inboxDir).taskFactory(item -> () -> processed.add(item)).interval(20)
+            .claimDirectory(claimDir).nodeId("node1").build();
+        inbox.start();
+        Thread.sleep(500);
+
+        assertThat(processed).containsExactly(claimDir.resolve("node1/item2"));
+        assertThat(inboxDir.resolve("item1")).isDirectory();
+
+        // The claim is retried once the conflicting item has been cleaned up
+        Files.delete(claimDir.resolve("node1/item1"));
+        Thread.sleep(2500);
+        assertThat(processed).containsExactlyInAnyOrder(claimDir.resolve("node1/item2"), claimDir.resolve("node1/item1"));
+        inbox.stop();
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.inbox;
+
+import nl.knaw.dans.lib.util.AbstractTestWithTestDir;
+import org.apache.commons.io.filefilter.FileFilterUtils;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class InboxGroupTest extends AbstractTestWithTestDir {
+
+    private Inbox createInbox(Path dir, List<Path> processed) {
+        return Inbox.builder()
+            .inbox(dir)
+            .fileFilter(FileFilterUtils.fileFileFilter())
+            .taskFactory(path -> () -> {
+                try {
+                    Thread.sleep(20);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                processed.add(path);
+            })
+            .build();
+    }
+
+    @Test
+    public void group_picks_up_files_in_all_inboxes() throws Exception {
+        Path inboxA = Files.createDirectory(testDir.resolve("a"));
+        Path inboxB = Files.createDirectory(testDir.resolve("b"));
+        List<Path> processed = new CopyOnWriteArrayList<>();
+        var group = InboxGroup.builder()
+            .inbox(createInbox(inboxA, processed), 1)
+            .inbox(createInbox(inboxB, processed), 1)
+            .interval(50)
+            .build();
+        group.start();
+        Thread.sleep(200);
+
+        Files.createFile(inboxA.resolve("file1.txt"));
+        Files.createFile(inboxB.resolve("file2.txt"));
+        Thread.sleep(500);
+
+        assertThat(processed).containsExactlyInAnyOrder(inboxA.resolve("file1.txt"), inboxB.resolve("file2.txt"));
+        group.stop();
+    }
+
+    @Test
+    public void flooded_inbox_does_not_starve_other_inbox() throws Exception {
+        Path flooded = Files.createDirectory(testDir.resolve("flooded"));
+        Path quiet = Files.createDirectory(testDir.resolve("quiet"));
+        for (int i = 0; i < 30; i++) {
+            Files.createFile(flooded.resolve(String.format("file%02d.txt", i)));
+        }
+        Files.createFile(quiet.resolve("file.txt"));
+        List<Path> processed = new CopyOnWriteArrayList<>();
+        var group = InboxGroup.builder()
+            .inbox(createInbox(flooded, processed), 2)
+            .inbox(createInbox(quiet, processed), 1)
+            .executorService(Executors.newSingleThreadExecutor())
+            .maxItemsInFlight(1)
+            .interval(10)
+            .build();
+        group.start();
+
+        Thread.sleep(300);
+        group.stop();
+
+        // With weights 2:1, the quiet inbox gets its turn after at most two items of the flooded inbox
+        assertThat(processed.size()).isGreaterThan(3);
+        assertThat(processed.indexOf(quiet.resolve("file.txt"))).isBetween(0, 2);
+    }
+
+    @Test
+    public void removed_inbox_does_not_stop_monitoring_of_other_inboxes() throws Exception {
+        Path removed = Files.createDirectory(testDir.resolve("removed"));
+        Path remaining = Files.createDirectory(testDir.resolve("remaining"));
+        List<Path> processed = new CopyOnWriteArrayList<>();
+        var removedInbox = Inbox.builder()
+            .inbox(removed)
+            .fileFilter(FileFilterUtils.fileFileFilter())
+            .taskFactory(path -> () -> processed.add(path))
+            .startupGracePeriodMillis(100)
+            .build();
+        var group = InboxGroup.builder()
+            .inbox(removedInbox, 1)
+            .inbox(createInbox(remaining, processed), 1)
+            .interval(20)
+            .build();
+        group.start();
+        Thread.sleep(200);
+
+        Files.delete(removed);
+        Thread.sleep(200);
+        Files.createFile(remaining.resolve("file1.txt"));
+        Thread.sleep(300);
+        assertThat(processed).containsExactly(remaining.resolve("file1.txt"));
+
+        // The monitor of the removed inbox is restarted when its directory is back
+        Files.createDirectory(removed);
+        Files.createFile(removed.resolve("file2.txt"));
+        Thread.sleep(500);
+        assertThat(processed).containsExactlyInAnyOrder(remaining.resolve("file1.txt"), removed.resolve("file2.txt"));
+        group.stop();
+    }
+
+    @Test
+    public void removed_inbox_does_not_stop_watching_of_other_inboxes() throws Exception {
+        Path removed = Files.createDirectory(testDir.resolve("removed"));
+        Path remaining = Files.createDirectory(testDir.resolve("remaining"));
+        List<Path> processed = new CopyOnWriteArrayList<>();
+        var group = InboxGroup.builder()
+            .inbox(createInbox(removed, processed), 1)
+            .inbox(createInbox(remaining, processed), 1)
+            .interval(20)
+            .detectionMode(Inbox.DetectionMode.WATCH_SERVICE)
+            .build();
+        group.start();
+        Thread.sleep(200);
+
+        // The watch key of the removed inbox becomes invalid, which must not crash the thread shared with the other inbox
+        Files.delete(removed);
+        Thread.sleep(100);
+        Files.createFile(remaining.resolve("file1.txt"));
+        Thread.sleep(250);
+        assertThat(processed).containsExactly(remaining.resolve("file1.txt"));
+        group.stop();
+    }
+
+    @Test
+    public void restarted_watching_inbox_receives_events_again() throws Exception {
+        Path dir = Files.createDirectory(testDir.resolve("inbox"));
+        List<Path> processed = new CopyOnWriteArrayList<>();
+        AtomicInteger filterCalls = new AtomicInteger();
+        var failingOnceInbox = Inbox.builder()
+            .inbox(dir)
+            .fileFilter(FileFilterUtils.asFileFilter(file -> {
+                if (filterCalls.getAndIncrement() == 0) {
+                    throw new IllegalStateException("test exception");
+                }
+                return file.isFile();
+            }))
+            .taskFactory(path -> () -> processed.add(path))
+            .startupGracePeriodMillis(300)
+            .build();
+        var group = InboxGroup.builder()
+            .inbox(failingOnceInbox, 1)
+            .interval(20)
+            .detectionMode(Inbox.DetectionMode.WATCH_SERVICE)
+            .build();
+        group.start();
+        Thread.sleep(200);
+
+        // The monitor fails on the first file, and the event for the second file arrives while it is stopped
+        Files.createFile(dir.resolve("file1.txt"));
+        Thread.sleep(100);
+        Files.createFile(dir.resolve("file2.txt"));
+        Thread.sleep(400);
+        assertThat(processed).containsExactlyInAnyOrder(dir.resolve("file1.txt"), dir.resolve("file2.txt"));
+
+        // The restarted monitor is notified of new files, long before the next reconciliation
+        Files.createFile(dir.resolve("file3.txt"));
+        Thread.sleep(300);
+        assertThat(processed).containsExactlyInAnyOrder(dir.resolve("file1.txt"), dir.resolve("file2.txt"), dir.resolve("file3.txt"));
+        group.stop();
+    }
+}
@@ -0,0 +1,250 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.inbox;
+
+import nl.knaw.dans.lib.util.AbstractTestWithTestDir;
+import org.apache.commons.io.filefilter.FileFilterUtils;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+public class InboxJournalTest extends AbstractTestWithTestDir {
+    private Path inboxDir;
+    private Path journalFile;
+
+    @BeforeEach
+    public void setUp() throws Exception {
+        super.setUp();
+        inboxDir = Files.createDirectory(testDir.resolve("inbox"));
+        journalFile = testDir.resolve("inbox.journal");
+    }
+
+    @Test
+    public void finished_items_are_remembered_after_reopening() throws Exception {
+        Path finished = Files.createFile(inboxDir.resolve("finished"));
+        Path started = Files.createFile(inboxDir.resolve("started"));
+        var journal = new InboxJournal(journalFile, inboxDir);
+        journal.record(finished, InboxJournal.State.ACCEPTED);
+        journal.record(started, InboxJournal.State.ACCEPTED);
+        journal.record(finished, InboxJournal.State.STARTED);
+        journal.record(started, InboxJournal.State.STARTED);
+        journal.record(finished, InboxJournal.State.FINISHED);
+        journal.close();
+
+        var reopened = new InboxJournal(journalFile, inboxDir);
+        assertThat(reopened.isFinished(finished)).isTrue();
+        assertThat(reopened.isFinished(started)).isFalse();
+        reopened.close();
+    }
+
+    @Test
+    public void replaced_item_with_same_name_is_not_finished() throws Exception {
+        Path item = Files.createFile(inboxDir.resolve("item"));
+        var journal = new InboxJournal(journalFile, inboxDir);
+        journal.record(item, InboxJournal.State.ACCEPTED);
+        journal.record(item, InboxJournal.State.FINISHED);
+        journal.close();
+
+        // Keep the old file around, so that the new one cannot get the same inode
+        Files.move(item, testDir.resolve("processed"));
+        Files.createFile(item);
+
+        var reopened = new InboxJournal(journalFile, inboxDir);
+        assertThat(reopened.isFinished(item)).isFalse();
+        reopened.close();
+    }
+
+    @Test
+    public void compaction_drops_finished_items_that_are_gone() throws Exception {
+        var journal = new InboxJournal(journalFile, inboxDir);
+        for (int i = 0; i < 20_000; i++) {
+            Path item = inboxDir.resolve("item-" + i);
+            journal.record(item, InboxJournal.State.ACCEPTED);
+            journal.record(item, InboxJournal.State.FINISHED);
+        }
+        Path present = Files.createFile(inboxDir.resolve("present"));
+        journal.record(present, InboxJournal.State.ACCEPTED);
+        journal.record(present, InboxJournal.State.FINISHED);
+        journal.close();
+
+        // Compaction has kept the journal small, and the last records were appended after it
+        assertThat(Files.size(journalFile)).isLessThan(2L << 20);
+        var reopened = new InboxJournal(journalFile, inboxDir);
+        assertThat(reopened.isFinished(present)).isTrue();
+        reopened.close();
+    }
+
+    @Test
+    public void inbox_does_not_resubmit_finished_items_after_restart() throws Exception {
+        Files.createFile(inboxDir.resolve("file1.txt"));
+        var inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .fileFilter(FileFilterUtils.fileFileFilter())
+            .taskFactory(path -> () -> {
+            })
+            .interval(50)
+            .journalFile(journalFile)
+            .build();
+        inbox.start();
+        Thread.sleep(300);
+        inbox.stop();
+
+        var processed = new AtomicInteger();
+        var restarted = Inbox.builder()
+            .inbox(inboxDir)
+            .fileFilter(FileFilterUtils.fileFileFilter())
+            .taskFactory(path -> processed::incrementAndGet)
+            .interval(50)
+            .journalFile(journalFile)
+            .build();
+        restarted.start();
+        Thread.sleep(300);
+        restarted.stop();
+
+        assertThat(processed.get()).isZero();
+    }
+
+    @Test
+    public void inbox_keeps_recording_after_stop_and_start() throws Exception {
+        var inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .fileFilter(FileFilterUtils.fileFileFilter())
+            .taskFactory(path -> () -> {
+            })
+            .interval(50)
+            .journalFile(journalFile)
+            .build();
+        inbox.start();
+        Thread.sleep(300);
+        inbox.stop();
+
+        inbox.start();
+        Thread.sleep(300);
+        Path item = Files.createFile(inboxDir.resolve("file1.txt"));
+        Thread.sleep(300);
+        inbox.stop();
+
+        var reopened = new InboxJournal(journalFile, inboxDir);
+        assertThat(reopened.isFinished(item)).isTrue();
+        reopened.close();
+    }
+
+    @Test
+    public void item_changed_by_its_task_is_not_resubmitted_after_restart() throws Exception {
+        Files.createDirectory(inboxDir.resolve("deposit1"));
+        var inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .taskFactory(path -> () -> {
+                try {
+                    Thread.sleep(20);
+                    Files.writeString(path.resolve("deposit.properties"), "state=PROCESSED");
+                }
+                catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            })
+            .interval(50)
+            .journalFile(journalFile)
+            .build();
+        inbox.start();
+        Thread.sleep(300);
+        inbox.stop();
+        assertThat(inboxDir.resolve("deposit1/deposit.properties")).exists();
+
+        var processed = new AtomicInteger();
+        var restarted = Inbox.builder()
+            .inbox(inboxDir)
+            .taskFactory(path -> processed::incrementAndGet)
+            .interval(50)
+            .journalFile(journalFile)
+            .build();
+        restarted.start();
+        Thread.sleep(300);
+        restarted.stop();
+
+        assertThat(processed.get()).isZero();
+    }
+
+    @Test
+    public void new_item_with_name_and_inode_of_deleted_finished_item_is_processed_after_restart() throws Exception {
+        Path item = Files.createFile(inboxDir.resolve("file1.txt"));
+        var inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .fileFilter(FileFilterUtils.fileFileFilter())
+            .taskFactory(path -> () -> {
+            })
+            .interval(50)
+            .journalFile(journalFile)
+            .build();
+        inbox.start();
+        Thread.sleep(300);
+        inbox.stop();
+
+        assumeTrue(recreateWithSameFileKey(item), "file system does not reuse file keys");
+
+        var processed = new AtomicInteger();
+        var restarted = Inbox.builder()
+            .inbox(inboxDir)
+            .fileFilter(FileFilterUtils.fileFileFilter())
+            .taskFactory(path -> processed::incrementAndGet)
+            .interval(50)
+            .journalFile(journalFile)
+            .build();
+        restarted.start();
+        Thread.sleep(300);
+        restarted.stop();
+
+        assertThat(processed.get()).isEqualTo(1);
+    }
+
+    // Deletes the file and creates a new one with the same name, until the new one gets the same file key (inode), as file systems tend to do
+    private boolean recreateWithSameFileKey(Path file) throws Exception {
+        var fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+        if (fileKey == null) {
+            return false;
+        }
+        var others = new ArrayList<Path>();
+        try {
+            for (int i = 0; i < 100; i++) {
+                Files.delete(file);
+                Thread.sleep(10);
+                Files.createFile(file);
+                if (fileKey.equals(Files.readAttributes(file, BasicFileAttributes.class).fileKey())) {
+                    return true;
+                }
+                // Keep the file that took another inode, so that the next attempt does not get that one
+                var other = testDir.resolve("other-" + i);
+                Files.move(file, other);
+                others.add(other);
+                Files.createFile(file);
+            }
+            return false;
+        }
+        finally {
+            for (var other : others) {
+                Files.deleteIfExists(other);
+            }
+        }
+    }
+}
@@ -15,9 +15,11 @@
  */
 package nl.knaw.dans.lib.util.inbox;
 
+import com.codahale.metrics.MetricRegistry;
 import lombok.Data;
 import lombok.extern.slf4j.Slf4j;
 import nl.knaw.dans.lib.util.AbstractTestWithTestDir;
+import nl.knaw.dans.lib.util.KeyBasedComparator;
 import org.apache.commons.io.filefilter.FileFilterUtils;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -25,10 +27,19 @@ import org.mockito.Mockito;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 @Slf4j
@@ -102,6 +113,534 @@ public class InboxTest extends AbstractTestWithTestDir {
         assertThat(t.done).isTrue();
     }
 
+    @Test
+    public void inbox_in_watch_service_mode_picks_up_files() throws Exception {
+        // Given
+        Path inboxDir = testDir.resolve("inbox");
+        Files.createDirectory(inboxDir);
+        Inbox inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .fileFilter(FileFilterUtils.fileFileFilter())
+            .taskFactory(inboxTaskFactoryMock)
+            .detectionMode(Inbox.DetectionMode.WATCH_SERVICE)
+            .build();
+        BooleanTask t = new BooleanTask();
+        when(inboxTaskFactoryMock.createInboxTask(any())).thenReturn(t);
+        inbox.start();
+
+        // Give the inbox some time to start
+        Thread.sleep(1000);
+
+        // When
+        Files.createFile(inboxDir.resolve("file1.txt"));
+
+        // Give the inbox some time to pick up the file
+        Thread.sleep(1500);
+
+        // Then
+        assertThat(t.done).isTrue();
+        inbox.stop();
+    }
+
+    @Test
+    public void inbox_in_watch_service_mode_picks_up_files_already_in_inbox_before_starting() throws Exception {
+        // Given
+        Path inboxDir = testDir.resolve("inbox");
+        Files.createDirectory(inboxDir);
+        Files.createFile(inboxDir.resolve("file1.txt"));
+        Inbox inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .fileFilter(FileFilterUtils.fileFileFilter())
+            .taskFactory(inboxTaskFactoryMock)
+            .detectionMode(Inbox.DetectionMode.WATCH_SERVICE)
+            .build();
+        BooleanTask t = new BooleanTask();
+        when(inboxTaskFactoryMock.createInboxTask(any())).thenReturn(t);
+        inbox.start();
+
+        // Give the inbox some time to pick up the file
+        Thread.sleep(1000);
+
+        // Then
+        assertThat(t.done).isTrue();
+        inbox.stop();
+    }
+
+    @Test
+    public void inbox_keeps_items_pending_when_max_items_in_flight_is_reached() throws Exception {
+        // Given
+        Path inboxDir = testDir.resolve("inbox");
+        Files.createDirectory(inboxDir);
+        for (int i = 1; i <= 3; i++) {
+            Files.createFile(inboxDir.resolve("file" + i + ".txt"));
+        }
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger completed = new AtomicInteger(0);
+        when(inboxTaskFactoryMock.createInboxTask(any())).thenAnswer(invocation -> (Runnable) () -> {
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            completed.incrementAndGet();
+        });
+        Inbox inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .fileFilter(FileFilterUtils.fileFileFilter())
+            .taskFactory(inboxTaskFactoryMock)
+            .executorService(Executors.newFixedThreadPool(4))
+            .interval(50)
+            .maxItemsInFlight(1)
+            .build();
+        inbox.start();
+
+        // When
+        Thread.sleep(500);
+
+        // Then only one task is created while the first one is still running
+        verify(inboxTaskFactoryMock, times(1)).createInboxTask(any());
+
+        release.countDown();
+        Thread.sleep(500);
+        assertThat(completed.get()).isEqualTo(3);
+        inbox.stop();
+    }
+
+    @Test
+    public void inbox_leaves_items_beyond_max_pending_items_to_the_monitor() throws Exception {
+        // Given
+        Path inboxDir = testDir.resolve("inbox");
+        Files.createDirectory(inboxDir);
+        for (int i = 1; i <= 10; i++) {
+            Files.createFile(inboxDir.resolve("file" + i + ".txt"));
+        }
+        List<Path> processed = new CopyOnWriteArrayList<>();
+        when(inboxTaskFactoryMock.createInboxTask(any())).thenAnswer(invocation -> (Runnable) () -> processed.add(invocation.getArgument(0)));
+        Inbox inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .fileFilter(FileFilterUtils.fileFileFilter())
+            .taskFactory(inboxTaskFactoryMock)
+            .interval(50)
+            .maxItemsInFlight(1)
+            .maxPendingItems(2)
+            .build();
+
+        // When
+        inbox.start();
+        Thread.sleep(2000);
+
+        // Then the items that did not fit in the pending items are found again, and every item is processed once
+        assertThat(processed).hasSize(10).doesNotHaveDuplicates();
+        inbox.stop();
+    }
+
+    @Test
+    public void inbox_waits_until_item_is_stable() throws Exception {
+        // Given
+        Path inboxDir = testDir.resolve("inbox");
+        Files.createDirectory(inboxDir);
+        Inbox inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .fileFilter(FileFilterUtils.fileFileFilter())
+            .taskFactory(inboxTaskFactoryMock)
+            .interval(50)
+            .stableItemWindowMillis(500)
+            .build();
+        BooleanTask t = new BooleanTask();
+        when(inboxTaskFactoryMock.createInboxTask(any())).thenReturn(t);
+        inbox.start();
+        Thread.sleep(200);
+
+        // When the file keeps growing for a while
+        Path file = inboxDir.resolve("file1.txt");
+        for (int i = 0; i < 5; i++) {
+            Files.writeString(file, "more content", StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            Thread.sleep(200);
+        }
+
+        // Then it is not processed while it is being written
+        assertThat(t.isDone()).isFalse();
+
+        // But it is once it has not changed for the window
+        Thread.sleep(1000);
+        assertThat(t.isDone()).isTrue();
+        inbox.stop();
+    }
+
+    @Test
+    public void inbox_processes_directory_when_marker_appears() throws Exception {
+        // Given
+        Path inboxDir = testDir.resolve("inbox");
+        Files.createDirectory(inboxDir);
+        Inbox inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .taskFactory(inboxTaskFactoryMock)
+            .interval(50)
+            .stableItemMarker("ready")
+            .build();
+        BooleanTask t = new BooleanTask();
+        when(inboxTaskFactoryMock.createInboxTask(any())).thenReturn(t);
+        inbox.start();
+        Path deposit = Files.createDirectory(inboxDir.resolve("deposit1"));
+        Thread.sleep(500);
+        assertThat(t.isDone()).isFalse();
+
+        // When
+        Files.createFile(deposit.resolve("ready"));
+        Thread.sleep(500);
+
+        // Then
+        assertThat(t.isDone()).isTrue();
+        inbox.stop();
+    }
+
+    @Test
+    public void inbox_does_not_process_marker_file_of_file_item() throws Exception {
+        // Given
+        Path inboxDir = testDir.resolve("inbox");
+        Files.createDirectory(inboxDir);
+        List<Path> processed = new CopyOnWriteArrayList<>();
+        when(inboxTaskFactoryMock.createInboxTask(any())).thenAnswer(invocation -> (Runnable) () -> processed.add(invocation.getArgument(0)));
+        Inbox inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .fileFilter(FileFilterUtils.fileFileFilter())
+            .taskFactory(inboxTaskFactoryMock)
+            .interval(50)
+            .stableItemMarker(".ready")
+            .stableItemWindowMillis(1000)
+            .build();
+        inbox.start();
+        Path item = Files.createFile(inboxDir.resolve("bag.zip"));
+        Thread.sleep(300);
+        assertThat(processed).isEmpty();
+
+        // When
+        Files.createFile(inboxDir.resolve("bag.zip.ready"));
+        Thread.sleep(300);
+        assertThat(processed).containsExactly(item);
+        Thread.sleep(1200);
+
+        // Then
+        assertThat(processed).containsExactly(item);
+        inbox.stop();
+    }
+
+    @Test
+    public void inbox_processes_rejected_item_once_filter_accepts_it() throws Exception {
+        // Given
+        Path inboxDir = testDir.resolve("inbox");
+        Files.createDirectory(inboxDir);
+        List<Path> processed = new CopyOnWriteArrayList<>();
+        when(inboxTaskFactoryMock.createInboxTask(any())).thenAnswer(invocation -> (Runnable) () -> processed.add(invocation.getArgument(0)));
+        Inbox inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .fileFilter(FileFilterUtils.asFileFilter(file -> file.toPath().resolve("deposit.properties").toFile().exists()))
+            .taskFactory(inboxTaskFactoryMock)
+            .interval(50)
+            .reconciliationIntervalMillis(200)
+            .build();
+        inbox.start();
+        Path deposit = Files.createDirectory(inboxDir.resolve("deposit1"));
+        Thread.sleep(500);
+        assertThat(processed).isEmpty();
+
+        // When
+        Files.createFile(deposit.resolve("deposit.properties"));
+        Thread.sleep(500);
+
+        // Then
+        assertThat(processed).containsExactly(deposit);
+        inbox.stop();
+    }
+
+    @Test
+    public void inbox_checks_rejected_item_again_when_inbox_directory_changes() throws Exception {
+        // Given
+        Path inboxDir = testDir.resolve("inbox");
+        Files.createDirectory(inboxDir);
+        List<Path> processed = new CopyOnWriteArrayList<>();
+        when(inboxTaskFactoryMock.createInboxTask(any())).thenAnswer(invocation -> (Runnable) () -> processed.add(invocation.getArgument(0)));
+        Inbox inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .fileFilter(FileFilterUtils.asFileFilter(file -> file.toPath().resolve("deposit.properties").toFile().exists()))
+            .taskFactory(inboxTaskFactoryMock)
+            .interval(50)
+            .build();
+        inbox.start();
+        Path deposit = Files.createDirectory(inboxDir.resolve("deposit1"));
+        Thread.sleep(500);
+        Files.createFile(deposit.resolve("deposit.properties"));
+        assertThat(processed).isEmpty();
+
+        // When
+        Files.createDirectory(inboxDir.resolve("deposit2"));
+        Thread.sleep(500);
+
+        // Then
+        assertThat(processed).containsExactly(deposit);
+        inbox.stop();
+    }
+
+    @Test
+    public void inbox_extracts_sort_key_once_per_item() throws Exception {
+        // Given
+        Path inboxDir = testDir.resolve("inbox");
+        Files.createDirectory(inboxDir);
+        for (int i = 0; i < 50; i++) {
+            Files.createFile(inboxDir.resolve(String.format("file%02d.txt", 49 - i)));
+        }
+        AtomicInteger keyExtractions = new AtomicInteger(0);
+        KeyBasedComparator<Path, String> comparator = new KeyBasedComparator<>() {
+
+            @Override
+            public String extractKey(Path path) {
+                keyExtractions.incrementAndGet();
+                return path.getFileName().toString();
+            }
+
+            @Override
+            public int compareKeys(String key1, String key2) {
+                return key1.compareTo(key2);
+            }
+        };
+        List<Path> processed = new CopyOnWriteArrayList<>();
+        when(inboxTaskFactoryMock.createInboxTask(any())).thenAnswer(invocation -> (Runnable) () -> processed.add(invocation.getArgument(0)));
+        Inbox inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .fileFilter(FileFilterUtils.fileFileFilter())
+            .taskFactory(inboxTaskFactoryMock)
+            .inboxItemComparator(comparator)
+            .interval(50)
+            .build();
+
+        // When
+        inbox.start();
+        Thread.sleep(500);
+
+        // Then
+        assertThat(keyExtractions.get()).isEqualTo(50);
+        assertThat(processed).hasSize(50);
+        assertThat(processed).isSortedAccordingTo(Comparator.comparing(Path::getFileName));
+        inbox.stop();
+    }
+
+    @Test
+    public void inbox_with_depth_picks_up_directories_in_shards() throws Exception {
+        // Given
+        Path inboxDir = testDir.resolve("inbox");
+        Files.createDirectories(inboxDir.resolve("2024-01-01/user1/deposit1"));
+        List<Path> processed = new CopyOnWriteArrayList<>();
+        when(inboxTaskFactoryMock.createInboxTask(any())).thenAnswer(invocation -> (Runnable) () -> processed.add(invocation.getArgument(0)));
+        Inbox inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .taskFactory(inboxTaskFactoryMock)
+            .interval(50)
+            .depth(3)
+            .scanParallelism(2)
+            .build();
+        inbox.start();
+        Thread.sleep(300);
+
+        // When
+        Files.createDirectories(inboxDir.resolve("2024-01-01/user2/deposit2"));
+        Files.createDirectories(inboxDir.resolve("2024-01-02/user1/deposit3"));
+        // Files at the item level are not accepted by the default filter, nor are directories at other levels
+        Files.createFile(inboxDir.resolve("2024-01-01/user1/file.txt"));
+        Files.createDirectories(inboxDir.resolve("2024-01-01/user1/deposit1/subdir"));
+        Thread.sleep(500);
+
+        // Then
+        assertThat(processed).containsExactlyInAnyOrder(
+            inboxDir.resolve("2024-01-01/user1/deposit1"),
+            inboxDir.resolve("2024-01-01/user2/deposit2"),
+            inboxDir.resolve("2024-01-02/user1/deposit3"));
+        inbox.stop();
+    }
+
+    @Test
+    public void inbox_with_depth_in_watch_service_mode_picks_up_directories_in_new_shards() throws Exception {
+        // Given
+        Path inboxDir = testDir.resolve("inbox");
+        Files.createDirectories(inboxDir);
+        List<Path> processed = new CopyOnWriteArrayList<>();
+        when(inboxTaskFactoryMock.createInboxTask(any())).thenAnswer(invocation -> (Runnable) () -> processed.add(invocation.getArgument(0)));
+        Inbox inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .taskFactory(inboxTaskFactoryMock)
+            .interval(100)
+            .detectionMode(Inbox.DetectionMode.WATCH_SERVICE)
+            .depth(2)
+            .build();
+        inbox.start();
+        Thread.sleep(300);
+
+        // When
+        Files.createDirectories(inboxDir.resolve("user1/deposit1"));
+        Thread.sleep(300);
+        Files.createDirectories(inboxDir.resolve("user1/deposit2"));
+        Thread.sleep(1000);
+
+        // Then
+        assertThat(processed).containsExactlyInAnyOrder(inboxDir.resolve("user1/deposit1"), inboxDir.resolve("user1/deposit2"));
+        inbox.stop();
+    }
+
+    @Test
+    public void inbox_registers_metrics() throws Exception {
+        // Given
+        Path inboxDir = testDir.resolve("inbox");
+        Files.createDirectories(inboxDir.resolve("ok"));
+        Files.createDirectories(inboxDir.resolve("fail"));
+        when(inboxTaskFactoryMock.createInboxTask(any())).thenAnswer(invocation -> (Runnable) () -> {
+            if (invocation.getArgument(0, Path.class).endsWith("fail")) {
+                throw new IllegalStateException("Task failed");
+            }
+        });
+        MetricRegistry metricRegistry = new MetricRegistry();
+        Inbox inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .taskFactory(inboxTaskFactoryMock)
+            .interval(50)
+            .executorService(Executors.newFixedThreadPool(1))
+            .metricRegistry(metricRegistry)
+            .metricsPrefix("test-inbox")
+            .build();
+
+        // When
+        inbox.start();
+        Thread.sleep(500);
+
+        // Then
+        assertThat(metricRegistry.meter("test-inbox.detected").getCount()).isEqualTo(2);
+        assertThat(metricRegistry.meter("test-inbox.submitted").getCount()).isEqualTo(2);
+        assertThat(metricRegistry.meter("test-inbox.processed").getCount()).isEqualTo(1);
+        assertThat(metricRegistry.meter("test-inbox.failed").getCount()).isEqualTo(1);
+        assertThat(metricRegistry.timer("test-inbox.detection-lag").getCount()).isEqualTo(2);
+        assertThat(metricRegistry.histogram("test-inbox.round-duration").getCount()).isGreaterThan(1);
+        assertThat(metricRegistry.getGauges()).containsKeys("test-inbox.pending", "test-inbox.executor-queue");
+        assertThat(metricRegistry.getGauges().get("test-inbox.pending").getValue()).isEqualTo(0);
+        inbox.stop();
+    }
+
+    @Test
+    public void inboxes_with_same_directory_name_get_distinct_metrics() throws Exception {
+        // Given
+        Path inboxDir1 = Files.createDirectories(testDir.resolve("a/inbox"));
+        Path inboxDir2 = Files.createDirectories(testDir.resolve("b/inbox"));
+        MetricRegistry metricRegistry = new MetricRegistry();
+
+        // When
+        Inbox.builder().inbox(inboxDir1).taskFactory(inboxTaskFactoryMock).metricRegistry(metricRegistry).stableItemMarker("ready").build();
+        Inbox.builder().inbox(inboxDir2).taskFactory(inboxTaskFactoryMock).metricRegistry(metricRegistry).build();
+
+        // Then
+        String prefix1 = MetricRegistry.name(Inbox.class, inboxDir1.toAbsolutePath().normalize().toString());
+        String prefix2 = MetricRegistry.name(Inbox.class, inboxDir2.toAbsolutePath().normalize().toString());
+        assertThat(metricRegistry.getGauges()).containsKeys(prefix1 + ".pending", prefix1 + ".unstable", prefix1 + ".executor-queue", prefix2 + ".pending");
+        assertThat(metricRegistry.getGauges()).doesNotContainKey(prefix2 + ".unstable");
+        assertThatThrownBy(() -> Inbox.builder().inbox(inboxDir2).taskFactory(inboxTaskFactoryMock).metricRegistry(metricRegistry).metricsPrefix(prefix1).build())
+            .isInstanceOf(IllegalArgumentException.class)
+            .hasMessageContaining(prefix1);
+    }
+
+    @Test
+    public void batch_task_factory_receives_items_in_batches_of_max_batch_size() throws Exception {
+        // Given
+        Path inboxDir = testDir.resolve("inbox");
+        Files.createDirectories(inboxDir);
+        for (int i = 0; i < 25; i++) {
+            Files.createDirectory(inboxDir.resolve(String.format("item%02d", i)));
+        }
+        List<List<Path>> batches = new CopyOnWriteArrayList<>();
+        Inbox inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .batchTaskFactory(paths -> () -> batches.add(paths))
+            .interval(50)
+            .maxBatchSize(10)
+            .build();
+
+        // When
+        inbox.start();
+        Thread.sleep(500);
+
+        // Then
+        assertThat(batches).extracting(List::size).containsExactly(10, 10, 5);
+        assertThat(batches.get(0).get(0)).isEqualTo(inboxDir.resolve("item00"));
+        assertThat(batches.get(2).get(4)).isEqualTo(inboxDir.resolve("item24"));
+        inbox.stop();
+    }
+
+    @Test
+    public void batch_is_cut_by_total_size_and_incomplete_batch_lingers() throws Exception {
+        // Given
+        Path inboxDir = testDir.resolve("inbox");
+        Files.createDirectories(inboxDir);
+        for (int i = 0; i < 3; i++) {
+            Files.write(inboxDir.resolve("file" + i), new byte[100]);
+        }
+        List<List<Path>> batches = new CopyOnWriteArrayList<>();
+        Inbox inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .fileFilter(FileFilterUtils.fileFileFilter())
+            .batchTaskFactory(paths -> () -> batches.add(paths))
+            .interval(50)
+            .maxBatchBytes(200L)
+            .batchLingerMillis(1000)
+            .build();
+
+        // When
+        inbox.start();
+        Thread.sleep(500);
+
+        // Then
+        assertThat(batches).extracting(List::size).containsExactly(2);
+        Thread.sleep(1000);
+        assertThat(batches).extracting(List::size).containsExactly(2, 1);
+        inbox.stop();
+    }
+
+    @Test
+    public void inbox_with_virtual_threads_runs_tasks_concurrently_up_to_max_items_in_flight() throws Exception {
+        // Given
+        Path inboxDir = testDir.resolve("inbox");
+        Files.createDirectories(inboxDir);
+        for (int i = 0; i < 10; i++) {
+            Files.createDirectory(inboxDir.resolve("item" + i));
+        }
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        AtomicInteger finished = new AtomicInteger();
+        when(inboxTaskFactoryMock.createInboxTask(any())).thenReturn(() -> {
+            maxRunning.accumulateAndGet(running.incrementAndGet(), Math::max);
+            try {
+                Thread.sleep(200);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+            finished.incrementAndGet();
+        });
+        Inbox inbox = Inbox.builder()
+            .inbox(inboxDir)
+            .taskFactory(inboxTaskFactoryMock)
+            .interval(20)
+            .virtualThreads(true)
+            .maxItemsInFlight(5)
+            .build();
+
+        // When
+        inbox.start();
+        Thread.sleep(1000);
+
+        // Then
+        assertThat(finished.get()).isEqualTo(10);
+        // The tasks overlap, but how many of them do depends on the timing of the rounds
+        assertThat(maxRunning.get()).isBetween(2, 5);
+        inbox.stop();
+    }
+
     @Test
     public void onPollingHandler_is_called_before_each_polling_run() throws Exception {
         // Given
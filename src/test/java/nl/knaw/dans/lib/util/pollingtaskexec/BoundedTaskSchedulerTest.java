@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.pollingtaskexec;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class BoundedTaskSchedulerTest {
+
+    @Test
+    void capacity_should_be_taken_while_tasks_run_and_released_when_they_finish() throws Exception {
+        var executorService = Executors.newFixedThreadPool(2);
+        var scheduler = new BoundedTaskScheduler(executorService, 2);
+        var release = new CountDownLatch(1);
+        var finished = new CountDownLatch(2);
+        Runnable task = () -> {
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            finished.countDown();
+        };
+
+        assertThat(scheduler.availableCapacity()).isEqualTo(2);
+        scheduler.schedule(task);
+        scheduler.schedule(task);
+        assertThat(scheduler.availableCapacity()).isEqualTo(0);
+        assertThatThrownBy(() -> scheduler.schedule(task)).isInstanceOf(RejectedExecutionException.class);
+
+        release.countDown();
+        assertThat(finished.await(5, TimeUnit.SECONDS)).isTrue();
+        executorService.shutdown();
+        assertThat(executorService.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(scheduler.availableCapacity()).isEqualTo(2);
+    }
+
+    @Test
+    void reserved_slots_should_not_be_taken_by_schedule() throws Exception {
+        var executorService = Executors.newFixedThreadPool(2);
+        var scheduler = new BoundedTaskScheduler(executorService, 2);
+        var finished = new CountDownLatch(1);
+
+        assertThat(scheduler.tryReserve(5)).isEqualTo(2);
+        assertThat(scheduler.tryReserve(1)).isEqualTo(0);
+        assertThatThrownBy(() -> scheduler.schedule(() -> {
+        })).isInstanceOf(RejectedExecutionException.class);
+        scheduler.scheduleReserved(finished::countDown);
+        scheduler.release(1);
+
+        assertThat(finished.await(5, TimeUnit.SECONDS)).isTrue();
+        executorService.shutdown();
+        assertThat(executorService.awaitTermination(5, TimeUnit.SECONDS)).isTrue();
+        assertThat(scheduler.availableCapacity()).isEqualTo(2);
+    }
+
+    @Test
+    void capacity_should_be_released_if_executor_service_rejects_task() {
+        var executorService = Executors.newFixedThreadPool(1);
+        executorService.shutdown();
+        var scheduler = new BoundedTaskScheduler(executorService, 1);
+
+        assertThatThrownBy(() -> scheduler.schedule(() -> {
+        })).isInstanceOf(RejectedExecutionException.class);
+        assertThat(scheduler.availableCapacity()).isEqualTo(1);
+    }
+}
@@ -15,21 +15,36 @@
  */
 package nl.knaw.dans.lib.util.pollingtaskexec;
 
+import com.codahale.metrics.MetricRegistry;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.assertj.core.api.Assertions.assertThat;
 import static org.assertj.core.api.Assertions.assertThatThrownBy;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
 import static org.mockito.ArgumentMatchers.anyLong;
 import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
@@ -112,6 +127,260 @@ class PollingTaskExecutorTest {
         verify(taskSource).nextInput();
     }
 
+    @Test
+    void tick_should_claim_batch_and_schedule_all_inputs() {
+        PollingTaskExecutor<String> batchExecutor = PollingTaskExecutor.<String> builder()
+            .name("batch-executor")
+            .scheduledExecutorService(scheduler)
+            .pollingInterval(Duration.ofMillis(100))
+            .taskSource(taskSource)
+            .taskFactory(taskFactory)
+            .batchSize(3)
+            .build();
+        Runnable task = mock(Runnable.class);
+        when(taskSource.nextInputs(3)).thenReturn(List.of("r1", "r2", "r3"), List.of("r4"));
+        when(taskFactory.create(any())).thenReturn(task);
+
+        batchExecutor.tick();
+
+        verify(taskSource).nextInputs(3);
+        verify(taskSource, never()).nextInput();
+        verify(taskFactory).create("r3");
+        verify(taskFactory, never()).create("r4");
+        verify(task, times(3)).run();
+    }
+
+    @Test
+    void tick_should_keep_claiming_until_source_is_drained() {
+        PollingTaskExecutor<String> drainingExecutor = PollingTaskExecutor.<String> builder()
+            .name("draining-executor")
+            .scheduledExecutorService(scheduler)
+            .pollingInterval(Duration.ofMillis(100))
+            .taskSource(taskSource)
+            .taskFactory(taskFactory)
+            .batchSize(2)
+            .drain(true)
+            .build();
+        Runnable task = mock(Runnable.class);
+        when(taskSource.nextInputs(2)).thenReturn(List.of("r1", "r2"), List.of("r3", "r4"), List.of("r5"), List.of("r6"));
+        when(taskFactory.create(any())).thenReturn(task);
+
+        drainingExecutor.tick();
+
+        verify(taskSource, times(3)).nextInputs(2);
+        verify(task, times(5)).run();
+    }
+
+    @Test
+    void tick_should_schedule_other_inputs_of_batch_if_one_fails() {
+        PollingTaskExecutor<String> batchExecutor = PollingTaskExecutor.<String> builder()
+            .name("batch-executor")
+            .scheduledExecutorService(scheduler)
+            .pollingInterval(Duration.ofMillis(100))
+            .taskSource(taskSource)
+            .taskFactory(taskFactory)
+            .batchSize(3)
+            .build();
+        Runnable task = mock(Runnable.class);
+        when(taskSource.nextInputs(3)).thenReturn(List.of("r1", "r2", "r3"));
+        when(taskFactory.create(any())).thenReturn(task);
+        when(taskFactory.create("r2")).thenThrow(new RuntimeException("test exception"));
+
+        batchExecutor.tick();
+
+        verify(task, times(2)).run();
+    }
+
+    @Test
+    void default_next_inputs_should_collect_single_inputs_until_empty() {
+        TaskSource<String> source = new TaskSource<>() {
+            private final List<String> records = new ArrayList<>(List.of("r1", "r2"));
+
+            @Override
+            public Optional<String> nextInput() {
+                return records.isEmpty() ? Optional.empty() : Optional.of(records.remove(0));
+            }
+        };
+
+        assertThat(source.nextInputs(5)).containsExactly("r1", "r2");
+        assertThat(source.nextInputs(5)).isEmpty();
+    }
+
+    @Test
+    void tick_should_not_claim_more_inputs_than_reserved_capacity() {
+        TaskScheduler boundedScheduler = mock(TaskScheduler.class);
+        when(boundedScheduler.tryReserve(5)).thenReturn(2, 0);
+        PollingTaskExecutor<String> batchExecutor = PollingTaskExecutor.<String> builder()
+            .name("batch-executor")
+            .scheduledExecutorService(scheduler)
+            .pollingInterval(Duration.ofMillis(100))
+            .taskSource(taskSource)
+            .taskFactory(taskFactory)
+            .taskScheduler(boundedScheduler)
+            .batchSize(5)
+            .drain(true)
+            .build();
+        when(taskSource.nextInputs(2)).thenReturn(List.of("r1", "r2"));
+        when(taskFactory.create(any())).thenReturn(mock(Runnable.class));
+
+        batchExecutor.tick();
+
+        verify(taskSource).nextInputs(2);
+        verify(boundedScheduler, times(2)).scheduleReserved(any());
+        verify(boundedScheduler, never()).schedule(any());
+        verify(boundedScheduler).release(0);
+
+        // No capacity left
+        batchExecutor.tick();
+
+        verify(taskSource).nextInputs(anyInt());
+    }
+
+    @Test
+    void tick_should_release_unused_reservations_and_not_lose_inputs_to_other_schedulers() throws Exception {
+        ExecutorService workers = Executors.newFixedThreadPool(2);
+        BoundedTaskScheduler boundedScheduler = new BoundedTaskScheduler(workers, 2);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch ran = new CountDownLatch(2);
+        PollingTaskExecutor<String> batchExecutor = PollingTaskExecutor.<String> builder()
+            .name("batch-executor")
+            .scheduledExecutorService(scheduler)
+            .pollingInterval(Duration.ofMillis(100))
+            .taskSource(taskSource)
+            .taskFactory(taskFactory)
+            .taskScheduler(boundedScheduler)
+            .batchSize(2)
+            .build();
+        // Another party tries to take a slot while the inputs are being claimed
+        when(taskSource.nextInputs(2)).thenAnswer(invocation -> {
+            assertThatThrownBy(() -> boundedScheduler.schedule(() -> {
+            })).isInstanceOf(RejectedExecutionException.class);
+            return List.of("r1");
+        });
+        when(taskFactory.create("r1")).thenReturn(() -> {
+            ran.countDown();
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        batchExecutor.tick();
+
+        // The slot reserved for the input that was not returned has been released
+        assertThat(boundedScheduler.availableCapacity()).isEqualTo(1);
+        boundedScheduler.schedule(ran::countDown);
+        assertThat(ran.await(5, TimeUnit.SECONDS)).isTrue();
+        release.countDown();
+        workers.shutdown();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void tick_should_record_metrics_and_notify_listener() {
+        MetricRegistry metricRegistry = new MetricRegistry();
+        TaskExecutionListener<String> listener = mock(TaskExecutionListener.class);
+        PollingTaskExecutor<String> instrumentedExecutor = PollingTaskExecutor.<String> builder()
+            .name("instrumented")
+            .scheduledExecutorService(scheduler)
+            .pollingInterval(Duration.ofMillis(100))
+            .taskSource(taskSource)
+            .taskFactory(taskFactory)
+            .metricRegistry(metricRegistry)
+            .listener(listener)
+            .build();
+        Runnable okTask = mock(Runnable.class);
+        Runnable failingTask = mock(Runnable.class);
+        RuntimeException failure = new RuntimeException("test exception");
+        doThrow(failure).when(failingTask).run();
+        when(taskSource.nextInput()).thenReturn(Optional.of("ok"), Optional.of("fail"), Optional.empty());
+        when(taskFactory.create("ok")).thenReturn(okTask);
+        when(taskFactory.create("fail")).thenReturn(failingTask);
+
+        instrumentedExecutor.tick();
+        instrumentedExecutor.tick();
+        instrumentedExecutor.tick();
+
+        String prefix = PollingTaskExecutor.class.getName() + ".instrumented.";
+        assertThat(metricRegistry.timer(prefix + "claim-latency").getCount()).isEqualTo(3);
+        assertThat(metricRegistry.meter(prefix + "polls").getCount()).isEqualTo(3);
+        assertThat(metricRegistry.meter(prefix + "hits").getCount()).isEqualTo(2);
+        assertThat(metricRegistry.timer(prefix + "queue-wait").getCount()).isEqualTo(2);
+        assertThat(metricRegistry.timer(prefix + "run-duration").getCount()).isEqualTo(2);
+        assertThat(metricRegistry.meter(prefix + "succeeded").getCount()).isEqualTo(1);
+        assertThat(metricRegistry.meter(prefix + "failed").getCount()).isEqualTo(1);
+        assertThat(metricRegistry.getGauges()).containsKey(prefix + "hit-ratio");
+        InOrder inOrder = inOrder(listener, okTask);
+        inOrder.verify(listener).beforeCreate("ok");
+        inOrder.verify(listener).afterCreate("ok", okTask);
+        inOrder.verify(listener).beforeRun("ok");
+        inOrder.verify(okTask).run();
+        inOrder.verify(listener).afterRun("ok", null);
+        verify(listener).afterRun("fail", failure);
+    }
+
+    @SuppressWarnings("unchecked")
+    private PollingTaskExecutor<String> createAdaptiveExecutor() {
+        when(scheduler.schedule(any(Runnable.class), anyLong(), any(TimeUnit.class))).thenAnswer(invocation -> mock(ScheduledFuture.class));
+        return PollingTaskExecutor.<String> builder()
+            .name("adaptive-executor")
+            .scheduledExecutorService(scheduler)
+            .pollingInterval(Duration.ofMillis(100))
+            .maxPollingInterval(Duration.ofMillis(300))
+            .taskSource(taskSource)
+            .taskFactory(taskFactory)
+            .build();
+    }
+
+    // Runs the last scheduled tick and returns the delay with which the next one was scheduled
+    private long runScheduledTick(int scheduledTicks) {
+        ArgumentCaptor<Runnable> tick = ArgumentCaptor.forClass(Runnable.class);
+        ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+        verify(scheduler, times(scheduledTicks)).schedule(tick.capture(), delay.capture(), eq(TimeUnit.MILLISECONDS));
+        tick.getValue().run();
+        verify(scheduler, times(scheduledTicks + 1)).schedule(tick.capture(), delay.capture(), eq(TimeUnit.MILLISECONDS));
+        return delay.getValue();
+    }
+
+    @Test
+    void adaptive_polling_should_back_off_while_idle_and_poll_immediately_after_hit() {
+        PollingTaskExecutor<String> adaptiveExecutor = createAdaptiveExecutor();
+        when(taskSource.nextInput()).thenReturn(Optional.empty(), Optional.empty(), Optional.empty(), Optional.of("r1"), Optional.empty());
+        when(taskFactory.create(any())).thenReturn(mock(Runnable.class));
+
+        adaptiveExecutor.start();
+
+        verify(scheduler).schedule(any(Runnable.class), eq(0L), eq(TimeUnit.MILLISECONDS));
+        assertThat(runScheduledTick(1)).isEqualTo(100L);
+        assertThat(runScheduledTick(2)).isEqualTo(200L);
+        assertThat(runScheduledTick(3)).isEqualTo(300L);
+        assertThat(runScheduledTick(4)).isEqualTo(0L);
+        assertThat(runScheduledTick(5)).isEqualTo(100L);
+    }
+
+    @Test
+    void wake_up_should_cancel_pending_tick_and_poll_immediately() {
+        PollingTaskExecutor<String> adaptiveExecutor = createAdaptiveExecutor();
+        when(taskSource.nextInput()).thenReturn(Optional.empty());
+
+        adaptiveExecutor.start();
+        runScheduledTick(1);
+        runScheduledTick(2);
+        adaptiveExecutor.wakeUp();
+
+        ArgumentCaptor<Runnable> tick = ArgumentCaptor.forClass(Runnable.class);
+        ArgumentCaptor<Long> delay = ArgumentCaptor.forClass(Long.class);
+        verify(scheduler, times(4)).schedule(tick.capture(), delay.capture(), eq(TimeUnit.MILLISECONDS));
+        assertThat(delay.getValue()).isEqualTo(0L);
+        // The superseded tick does nothing when it runs anyway
+        tick.getAllValues().get(2).run();
+        verify(taskSource, times(2)).nextInput();
+        // The backoff was reset
+        assertThat(runScheduledTick(4)).isEqualTo(100L);
+    }
+
     @Test
     void copy_constructor_should_copy_fields() {
         PollingTaskExecutor<String> copy = new PollingTaskExecutor<>(executor);
@@ -141,4 +410,89 @@ class PollingTaskExecutorTest {
             .isInstanceOf(IllegalArgumentException.class)
             .hasMessage("Cannot copy a running executor");
     }
+
+    @Test
+    void stop_should_wait_for_running_tasks_to_finish() throws Exception {
+        ExecutorService workers = Executors.newSingleThreadExecutor();
+        CountDownLatch started = new CountDownLatch(1);
+        PollingTaskExecutor<String> drainingExecutor = new PollingTaskExecutor<>("test-executor", scheduler, Duration.ofMillis(100), taskSource, taskFactory,
+            new ExecutorServiceTaskScheduler(workers));
+        when(taskSource.nextInput()).thenReturn(Optional.of("record"), Optional.empty());
+        when(taskFactory.create("record")).thenReturn(() -> {
+            started.countDown();
+            sleep(200);
+        });
+
+        drainingExecutor.tick();
+        started.await();
+        assertThat(drainingExecutor.getTasksInFlight()).isEqualTo(1);
+
+        assertThat(drainingExecutor.stop(Duration.ofSeconds(5))).isEmpty();
+        assertThat(drainingExecutor.getTasksInFlight()).isEqualTo(0);
+        workers.shutdown();
+    }
+
+    @Test
+    void stop_should_return_tasks_still_running_after_drain_timeout() throws Exception {
+        ExecutorService workers = Executors.newSingleThreadExecutor();
+        CountDownLatch release = new CountDownLatch(1);
+        PollingTaskExecutor<String> drainingExecutor = new PollingTaskExecutor<>("test-executor", scheduler, Duration.ofMillis(100), taskSource, taskFactory,
+            new ExecutorServiceTaskScheduler(workers));
+        when(taskSource.nextInput()).thenReturn(Optional.of("stuck-record"), Optional.empty());
+        when(taskFactory.create("stuck-record")).thenReturn(() -> {
+            try {
+                release.await();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        drainingExecutor.tick();
+
+        long start = System.nanoTime();
+        assertThat(drainingExecutor.stop(Duration.ofMillis(100))).containsExactly("stuck-record");
+        assertThat(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start)).isGreaterThanOrEqualTo(100L);
+        verify(scheduler).shutdown();
+        release.countDown();
+        workers.shutdown();
+    }
+
+    @Test
+    void stop_during_drain_should_not_claim_any_more_inputs() throws Exception {
+        AtomicInteger claims = new AtomicInteger();
+        CountDownLatch draining = new CountDownLatch(10);
+        TaskSource<String> backlog = () -> {
+            draining.countDown();
+            return Optional.of("record-" + claims.incrementAndGet());
+        };
+        PollingTaskExecutor<String> drainingExecutor = PollingTaskExecutor.<String> builder()
+            .name("draining-executor")
+            .scheduledExecutorService(Executors.newSingleThreadScheduledExecutor())
+            .pollingInterval(Duration.ofMillis(100))
+            .taskSource(backlog)
+            .taskFactory(record -> () -> sleep(5))
+            .drain(true)
+            .build();
+
+        drainingExecutor.start();
+        draining.await();
+        List<String> abandoned = drainingExecutor.stop(Duration.ZERO);
+        int claimsAtStop = claims.get();
+        sleep(200);
+
+        assertThat(claims.get()).isEqualTo(claimsAtStop);
+        // At most the input of the task that was running when the executor was stopped
+        assertThat(abandoned.size()).isLessThanOrEqualTo(1);
+        assertThat(drainingExecutor.getTasksInFlight()).isLessThanOrEqualTo(1);
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
 }
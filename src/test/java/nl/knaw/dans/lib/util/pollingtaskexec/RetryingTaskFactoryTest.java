@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.pollingtaskexec;
+
+import com.codahale.metrics.MetricRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RetryingTaskFactoryTest {
+    private ExecutorService workers;
+    private MetricRegistry metricRegistry;
+    private List<String> deadLetters;
+
+    @BeforeEach
+    void setUp() {
+        workers = Executors.newFixedThreadPool(2);
+        metricRegistry = new MetricRegistry();
+        deadLetters = new CopyOnWriteArrayList<>();
+    }
+
+    @AfterEach
+    void tearDown() {
+        workers.shutdownNow();
+    }
+
+    private RetryingTaskFactory<String> createFactory(TaskFactory<String> taskFactory, RetryPolicy retryPolicy) {
+        return RetryingTaskFactory.<String> builder()
+            .name("test")
+            .taskFactory(taskFactory)
+            .retryPolicy(retryPolicy)
+            .taskScheduler(new ExecutorServiceTaskScheduler(workers))
+            .deadLetterSink((record, error, attempts) -> deadLetters.add(record + ":" + attempts))
+            .tickDuration(Duration.ofMillis(10))
+            .metricRegistry(metricRegistry)
+            .build();
+    }
+
+    @Test
+    void failed_task_should_be_retried_with_backoff_until_it_succeeds() {
+        var attempts = new AtomicInteger();
+        var factory = createFactory(record -> () -> {
+            if (attempts.incrementAndGet() < 3) {
+                throw new IllegalStateException("attempt " + attempts.get());
+            }
+        }, RetryPolicy.builder().maxAttempts(5).initialBackoff(Duration.ofMillis(50)).jitter(0.0).build());
+        factory.start();
+
+        long start = System.nanoTime();
+        factory.create("record").run();
+        waitUntil(() -> metricRegistry.meter("nl.knaw.dans.lib.util.pollingtaskexec.RetryingTaskFactory.test.recovered").getCount() == 1);
+
+        assertThat(attempts.get()).isEqualTo(3);
+        // 50 ms before the first retry and 100 ms before the second
+        assertThat(Duration.ofNanos(System.nanoTime() - start)).isGreaterThanOrEqualTo(Duration.ofMillis(150));
+        assertThat(metricRegistry.meter("nl.knaw.dans.lib.util.pollingtaskexec.RetryingTaskFactory.test.retries").getCount()).isEqualTo(2);
+        assertThat(deadLetters).isEmpty();
+        factory.stop();
+    }
+
+    @Test
+    void task_should_be_dead_lettered_after_max_attempts_or_non_retryable_error() {
+        var factory = createFactory(record -> () -> {
+            throw record.startsWith("fatal") ? new IllegalArgumentException(record) : new IllegalStateException(record);
+        }, RetryPolicy.builder().maxAttempts(3).initialBackoff(Duration.ofMillis(10)).retryable(e -> !(e instanceof IllegalArgumentException)).build());
+        factory.start();
+
+        factory.create("flaky").run();
+        factory.create("fatal").run();
+        waitUntil(() -> deadLetters.size() == 2);
+
+        assertThat(deadLetters).containsExactlyInAnyOrder("fatal:1", "flaky:3");
+        assertThat(metricRegistry.meter("nl.knaw.dans.lib.util.pollingtaskexec.RetryingTaskFactory.test.dead-lettered").getCount()).isEqualTo(2);
+        assertThat(metricRegistry.histogram("nl.knaw.dans.lib.util.pollingtaskexec.RetryingTaskFactory.test.attempts").getSnapshot().getValues()).containsExactly(1, 3);
+        factory.stop();
+    }
+
+    @Test
+    void stop_should_wait_for_retries_in_flight() {
+        var attempts = new AtomicInteger();
+        var factory = createFactory(record -> () -> {
+            if (attempts.incrementAndGet() < 2) {
+                throw new IllegalStateException("attempt " + attempts.get());
+            }
+        }, RetryPolicy.builder().maxAttempts(5).initialBackoff(Duration.ofMillis(50)).jitter(0.0).build());
+        factory.start();
+
+        factory.create("record").run();
+        assertThat(factory.getRetriesInFlight()).isEqualTo(1);
+        var dropped = factory.stop(Duration.ofSeconds(2));
+
+        assertThat(dropped).isEmpty();
+        assertThat(attempts.get()).isEqualTo(2);
+        assertThat(factory.getRetriesInFlight()).isZero();
+    }
+
+    @Test
+    void stop_should_return_retries_still_in_flight_after_drain_timeout() {
+        var factory = createFactory(record -> () -> {
+            throw new IllegalStateException(record);
+        }, RetryPolicy.builder().maxAttempts(5).initialBackoff(Duration.ofSeconds(10)).build());
+        factory.start();
+
+        factory.create("record").run();
+        var dropped = factory.stop(Duration.ofMillis(100));
+
+        assertThat(dropped).containsExactly("record");
+        assertThat(deadLetters).isEmpty();
+    }
+
+    @Test
+    void retry_rejected_by_shut_down_executor_should_be_dead_lettered_after_max_rejections() {
+        var factory = RetryingTaskFactory.<String> builder()
+            .name("test")
+            .taskFactory(record -> () -> {
+                throw new IllegalStateException(record);
+            })
+            .retryPolicy(RetryPolicy.builder().maxAttempts(5).initialBackoff(Duration.ofMillis(10)).build())
+            .taskScheduler(new ExecutorServiceTaskScheduler(workers))
+            .deadLetterSink((record, error, attempts) -> deadLetters.add(record + ":" + attempts))
+            .tickDuration(Duration.ofMillis(10))
+            .maxRejections(3)
+            .build();
+        factory.start();
+
+        var task = factory.create("record");
+        workers.shutdown();
+        task.run();
+        waitUntil(() -> deadLetters.size() == 1);
+
+        assertThat(deadLetters).containsExactly("record:1");
+        assertThat(factory.getRetriesInFlight()).isZero();
+        factory.stop();
+    }
+
+    @Test
+    void backoff_should_grow_exponentially_up_to_max_and_apply_jitter() {
+        var policy = RetryPolicy.builder().initialBackoff(Duration.ofSeconds(1)).maxBackoff(Duration.ofSeconds(5)).multiplier(2.0).jitter(0.5).build();
+
+        assertThat(policy.backoff(1, 0.0)).isEqualTo(Duration.ofSeconds(1));
+        assertThat(policy.backoff(3, 0.0)).isEqualTo(Duration.ofSeconds(4));
+        assertThat(policy.backoff(4, 0.0)).isEqualTo(Duration.ofSeconds(5));
+        assertThat(policy.backoff(3, 1.0)).isEqualTo(Duration.ofSeconds(2));
+        assertThat(policy.shouldRetry(2, new RuntimeException())).isTrue();
+        assertThat(policy.shouldRetry(3, new RuntimeException())).isFalse();
+    }
+
+    private static void waitUntil(BooleanSupplier condition) {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (!condition.getAsBoolean()) {
+            assertThat(System.nanoTime()).as("condition not met within 5 seconds").isLessThan(deadline);
+            try {
+                Thread.sleep(10);
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+}
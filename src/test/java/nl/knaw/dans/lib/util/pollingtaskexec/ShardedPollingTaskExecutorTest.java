@@ -0,0 +1,137 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.pollingtaskexec;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ShardedPollingTaskExecutorTest {
+
+    private static class Record {
+        private final String key;
+        private final int sequence;
+
+        private Record(String key, int sequence) {
+            this.key = key;
+            this.sequence = sequence;
+        }
+    }
+
+    @Test
+    void records_are_processed_in_order_per_key_and_never_concurrently_for_the_same_key() throws Exception {
+        int shards = 4;
+        List<Queue<Record>> queues = new ArrayList<>();
+        for (int i = 0; i < shards; i++) {
+            queues.add(new ConcurrentLinkedQueue<>());
+        }
+        for (int sequence = 0; sequence < 10; sequence++) {
+            for (int k = 0; k < 8; k++) {
+                var record = new Record("dataset-" + k, sequence);
+                queues.get(ShardedPollingTaskExecutor.shardOf(record.key, shards)).add(record);
+            }
+        }
+        Map<String, List<Integer>> processed = new ConcurrentHashMap<>();
+        Map<String, Boolean> running = new ConcurrentHashMap<>();
+        List<String> threads = new CopyOnWriteArrayList<>();
+        AtomicBoolean overlap = new AtomicBoolean();
+        TaskFactory<Record> taskFactory = record -> () -> {
+            if (running.put(record.key, true) != null) {
+                overlap.set(true);
+            }
+            threads.add(Thread.currentThread().getName());
+            processed.computeIfAbsent(record.key, k -> new CopyOnWriteArrayList<>()).add(record.sequence);
+            running.remove(record.key);
+        };
+        var executor = ShardedPollingTaskExecutor.<Record> builder()
+            .name("sharded")
+            .shards(shards)
+            .pollingInterval(Duration.ofMillis(10))
+            .taskSourceForShard(shard -> () -> Optional.ofNullable(queues.get(shard).poll()))
+            .taskFactory(taskFactory)
+            .batchSize(3)
+            .drain(true)
+            .build();
+
+        executor.start();
+        Thread.sleep(500);
+        executor.stop();
+
+        assertThat(processed).hasSize(8);
+        processed.values().forEach(sequences -> assertThat(sequences).containsExactly(0, 1, 2, 3, 4, 5, 6, 7, 8, 9));
+        assertThat(overlap).isFalse();
+        assertThat(threads).allMatch(thread -> thread.startsWith("sharded-shard-"));
+    }
+
+    @Test
+    void stop_during_drain_should_not_claim_any_more_inputs_in_any_shard() throws Exception {
+        AtomicInteger claims = new AtomicInteger();
+        CountDownLatch draining = new CountDownLatch(20);
+        var executor = ShardedPollingTaskExecutor.<String> builder()
+            .name("sharded")
+            .shards(2)
+            .pollingInterval(Duration.ofMillis(10))
+            .taskSourceForShard(shard -> () -> {
+                draining.countDown();
+                return Optional.of("record-" + claims.incrementAndGet());
+            })
+            .taskFactory(record -> () -> {
+                try {
+                    Thread.sleep(5);
+                }
+                catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            })
+            .drain(true)
+            .build();
+
+        executor.start();
+        draining.await();
+        executor.stop(Duration.ZERO);
+        int claimsAtStop = claims.get();
+        Thread.sleep(200);
+
+        assertThat(claims.get()).isEqualTo(claimsAtStop);
+    }
+
+    @Test
+    void number_of_shards_must_be_positive() {
+        assertThatThrownBy(() -> ShardedPollingTaskExecutor.<String> builder()
+            .name("sharded")
+            .shards(0)
+            .pollingInterval(Duration.ofMillis(10))
+            .taskSourceForShard(shard -> Optional::empty)
+            .taskFactory(record -> () -> {
+            })
+            .build())
+            .isInstanceOf(IllegalArgumentException.class);
+    }
+}
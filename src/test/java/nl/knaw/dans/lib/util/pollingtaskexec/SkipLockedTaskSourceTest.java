@@ -0,0 +1,179 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.pollingtaskexec;
+
+import nl.knaw.dans.lib.util.PersistenceProviderImpl;
+import org.hibernate.LockOptions;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.cfg.Configuration;
+import org.hibernate.context.internal.ManagedSessionContext;
+import org.hibernate.dialect.H2Dialect;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+public class SkipLockedTaskSourceTest {
+    private SessionFactory sessionFactory;
+    private SkipLockedTaskSource<TaskRecord> taskSource;
+
+    // The H2 dialect of Hibernate 5 does not know that H2 2.x supports SKIP LOCKED
+    public static class H2SkipLockedDialect extends H2Dialect {
+        @Override
+        public String getForUpdateSkipLockedString() {
+            return " for update skip locked";
+        }
+
+        @Override
+        public boolean supportsSkipLocked() {
+            return true;
+        }
+
+        @Override
+        public String getWriteLockString(int timeout) {
+            return timeout == LockOptions.SKIP_LOCKED ? getForUpdateSkipLockedString() : super.getWriteLockString(timeout);
+        }
+    }
+
+    @Entity(name = "TaskRecord")
+    public static class TaskRecord {
+        @Id
+        @GeneratedValue
+        private Long id;
+        private String name;
+        private String status;
+        private Instant leaseExpiresAt;
+
+        public TaskRecord() {
+        }
+
+        TaskRecord(String name, String status, Instant leaseExpiresAt) {
+            this.name = name;
+            this.status = status;
+            this.leaseExpiresAt = leaseExpiresAt;
+        }
+    }
+
+    @BeforeEach
+    public void setUp() {
+        sessionFactory = new Configuration()
+            .setProperty("hibernate.connection.driver_class", "org.h2.Driver")
+            .setProperty("hibernate.connection.url", "jdbc:h2:mem:skip-locked;DB_CLOSE_DELAY=-1;LOCK_TIMEOUT=5000")
+            .setProperty("hibernate.dialect", H2SkipLockedDialect.class.getName())
+            .setProperty("hibernate.hbm2ddl.auto", "create-drop")
+            .setProperty("hibernate.current_session_context_class", "managed")
+            .addAnnotatedClass(TaskRecord.class)
+            .buildSessionFactory();
+        taskSource = SkipLockedTaskSource.<TaskRecord> builder()
+            .persistenceProvider(new PersistenceProviderImpl<>(sessionFactory, TaskRecord.class))
+            .entityClass(TaskRecord.class)
+            .statusAttribute("status")
+            .readyStatus("READY")
+            .claimedStatus("CLAIMED")
+            .leaseAttribute("leaseExpiresAt")
+            .leaseTimeout(Duration.ofMinutes(5))
+            .claimer((record, leaseExpiry) -> {
+                record.status = "CLAIMED";
+                record.leaseExpiresAt = leaseExpiry;
+            })
+            .build();
+    }
+
+    @AfterEach
+    public void tearDown() {
+        sessionFactory.close();
+    }
+
+    private <T> T inUnitOfWork(Supplier<T> work) {
+        try (Session session = sessionFactory.openSession()) {
+            ManagedSessionContext.bind(session);
+            var transaction = session.beginTransaction();
+            try {
+                T result = work.get();
+                transaction.commit();
+                return result;
+            }
+            finally {
+                ManagedSessionContext.unbind(sessionFactory);
+            }
+        }
+    }
+
+    private void insert(TaskRecord... records) {
+        inUnitOfWork(() -> {
+            for (var record : records) {
+                sessionFactory.getCurrentSession().persist(record);
+            }
+            return null;
+        });
+    }
+
+    private static List<String> names(List<TaskRecord> records) {
+        return records.stream().map(record -> record.name).collect(Collectors.toList());
+    }
+
+    @Test
+    public void claims_ready_and_expired_records_in_order() {
+        insert(new TaskRecord("ready-1", "READY", null),
+            new TaskRecord("done", "DONE", null),
+            new TaskRecord("claimed", "CLAIMED", Instant.now().plusSeconds(60)),
+            new TaskRecord("expired", "CLAIMED", Instant.now().minusSeconds(60)),
+            new TaskRecord("ready-2", "READY", null));
+
+        var claimed = inUnitOfWork(() -> taskSource.nextInputs(10));
+
+        assertThat(names(claimed)).containsExactly("ready-1", "expired", "ready-2");
+        assertThat(claimed).allMatch(record -> record.status.equals("CLAIMED") && record.leaseExpiresAt.isAfter(Instant.now().plusSeconds(240)));
+        assertThat(inUnitOfWork(() -> taskSource.nextInput())).isEmpty();
+    }
+
+    @Test
+    public void concurrent_claim_skips_records_locked_by_other_transaction() throws Exception {
+        insert(new TaskRecord("r1", "READY", null),
+            new TaskRecord("r2", "READY", null),
+            new TaskRecord("r3", "READY", null),
+            new TaskRecord("r4", "READY", null));
+        var otherPoller = Executors.newSingleThreadExecutor();
+
+        var claimedByOther = inUnitOfWork(() -> {
+            var claimed = taskSource.nextInputs(2);
+            // While this transaction holds its locks, another poller claims the next records instead of waiting
+            try {
+                return List.of(claimed, otherPoller.submit(() -> inUnitOfWork(() -> taskSource.nextInputs(2))).get(3, TimeUnit.SECONDS));
+            }
+            catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+
+        assertThat(names(claimedByOther.get(0))).containsExactly("r1", "r2");
+        assertThat(names(claimedByOther.get(1))).containsExactly("r3", "r4");
+        otherPoller.shutdown();
+    }
+}
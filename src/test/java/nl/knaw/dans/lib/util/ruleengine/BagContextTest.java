@@ -0,0 +1,63 @@
+/*
+ * Copyright (C) 2021 DANS - Data Archiving and Networked Services (info@dans.knaw.nl)
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nl.knaw.dans.lib.util.ruleengine;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class BagContextTest {
+
+    @Test
+    void get_should_compute_artifact_once_and_let_loaders_use_other_artifacts() throws Exception {
+        var loads = new AtomicInteger();
+        var listing = BagContext.key("listing", (bag, context) -> {
+            loads.incrementAndGet();
+            return bag.resolve("data");
+        });
+        var manifest = BagContext.key("manifest", (bag, context) -> context.get(listing).resolve("manifest"));
+
+        try (var context = new BagContext(Path.of("bagdir"))) {
+            assertEquals(Path.of("bagdir/data/manifest"), context.get(manifest));
+            assertSame(context.get(listing), context.get(listing));
+            assertEquals(1, loads.get());
+        }
+    }
+
+    @Test
+    void get_should_rethrow_same_exception_without_computing_again() {
+        var loads = new AtomicInteger();
+        var broken = BagContext.key("broken", (bag, context) -> {
+            loads.incrementAndGet();
+            throw new IOException("cannot read " + bag);
+        });
+
+        try (var context = new BagContext(Path.of("bagdir"))) {
+            var first = assertThrows(IOException.class, () -> context.get(broken));
+            var second = assertThrows(IOException.class, () -> context.get(broken));
+
+            assertSame(first, second);
+            assertEquals("cannot read bagdir", first.getMessage());
+            assertEquals(1, loads.get());
+        }
+    }
+}
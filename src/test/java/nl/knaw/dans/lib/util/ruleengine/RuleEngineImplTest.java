@@ -15,15 +15,29 @@
  */
 package nl.knaw.dans.lib.util.ruleengine;
 
+import com.codahale.metrics.MetricRegistry;
 import org.junit.jupiter.api.Test;
 import org.mockito.Mockito;
 
 import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class RuleEngineImplTest {
 
@@ -151,4 +165,294 @@ class RuleEngineImplTest {
 
         assertEquals(3, result.size());
     }
-}
\ No newline at end of file
+
+    @Test
+    void validateBag_should_run_independent_rules_in_parallel() throws Exception {
+        // both rules wait for each other, so they can only succeed if they run at the same time
+        var bothStarted = new CountDownLatch(2);
+        BagValidatorRule waitingRule = path -> {
+            bothStarted.countDown();
+            return bothStarted.await(5, TimeUnit.SECONDS) ? RuleResult.ok() : RuleResult.error("not run in parallel");
+        };
+        var fakeRule = Mockito.mock(BagValidatorRule.class);
+        Mockito.when(fakeRule.validate(Mockito.any())).thenReturn(RuleResult.ok());
+        var rules = List.of(
+            new NumberedRule("1.1", waitingRule),
+            new NumberedRule("1.2", waitingRule),
+            new NumberedRule("1.3", fakeRule, List.of("1.1", "1.2")));
+
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            var result = new RuleEngineImpl(executor).validateBag(Path.of("bagdir"), rules);
+
+            assertEquals(List.of(
+                new RuleValidationResult("1.1", RuleValidationResult.RuleValidationResultStatus.SUCCESS),
+                new RuleValidationResult("1.2", RuleValidationResult.RuleValidationResultStatus.SUCCESS),
+                new RuleValidationResult("1.3", RuleValidationResult.RuleValidationResultStatus.SUCCESS)), result);
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void validateBag_should_skip_all_transitive_dependents_of_rule_that_skips_dependencies() throws Exception {
+        var fakeRule = Mockito.mock(BagValidatorRule.class);
+        Mockito.when(fakeRule.validate(Mockito.any())).thenReturn(RuleResult.ok());
+        var rules = List.of(
+            new NumberedRule("1.1", path -> RuleResult.skipDependencies()),
+            new NumberedRule("1.2", fakeRule, List.of("1.1")),
+            new NumberedRule("1.3", fakeRule, List.of("1.2", "1.4")),
+            new NumberedRule("1.4", fakeRule));
+
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            var result = new RuleEngineImpl(executor).validateBag(Path.of("bagdir"), rules);
+
+            assertEquals(List.of(
+                new RuleValidationResult("1.1", RuleValidationResult.RuleValidationResultStatus.SUCCESS, true),
+                new RuleValidationResult("1.2", RuleValidationResult.RuleValidationResultStatus.SKIPPED),
+                new RuleValidationResult("1.3", RuleValidationResult.RuleValidationResultStatus.SKIPPED),
+                new RuleValidationResult("1.4", RuleValidationResult.RuleValidationResultStatus.SUCCESS)), result);
+            Mockito.verify(fakeRule, Mockito.times(1)).validate(Mockito.any());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void validateBag_should_skip_unexecutable_dependents_of_failed_rule_in_both_modes() throws Exception {
+        var fakeRule = Mockito.mock(BagValidatorRule.class);
+        Mockito.when(fakeRule.validate(Mockito.any())).thenReturn(RuleResult.ok());
+        var rules = List.of(
+            new NumberedRule("1.1", path -> RuleResult.error("failed")),
+            new NumberedRule("1.2", fakeRule, List.of("1.1", "9.9")),
+            new NumberedRule("1.3", fakeRule, List.of("1.2")),
+            new NumberedRule("1.4", fakeRule, List.of("1.1", "1.5")),
+            new NumberedRule("1.5", fakeRule, List.of("1.4")),
+            new NumberedRule("1.6", fakeRule, List.of("9.9")));
+        var expected = List.of(
+            new RuleValidationResult("1.1", RuleValidationResult.RuleValidationResultStatus.FAILURE, "failed"),
+            new RuleValidationResult("1.2", RuleValidationResult.RuleValidationResultStatus.SKIPPED),
+            new RuleValidationResult("1.3", RuleValidationResult.RuleValidationResultStatus.SKIPPED),
+            new RuleValidationResult("1.4", RuleValidationResult.RuleValidationResultStatus.SKIPPED),
+            new RuleValidationResult("1.5", RuleValidationResult.RuleValidationResultStatus.SKIPPED));
+
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            assertEquals(expected, new RuleEngineImpl().validateBag(Path.of("bagdir"), rules));
+            assertEquals(expected, new RuleEngineImpl(executor).validateBag(Path.of("bagdir"), rules));
+            Mockito.verify(fakeRule, Mockito.never()).validate(Mockito.any());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void validateBag_should_rethrow_exception_of_rule() throws Exception {
+        var fakeRule = Mockito.mock(BagValidatorRule.class);
+        Mockito.when(fakeRule.validate(Mockito.any())).thenReturn(RuleResult.ok());
+        var rules = List.of(
+            new NumberedRule("1.1", path -> {
+                throw new IllegalStateException("rule could not be run");
+            }),
+            new NumberedRule("1.2", fakeRule, List.of("1.1")));
+
+        var exception = assertThrows(IllegalStateException.class, () -> new RuleEngineImpl().validateBag(Path.of("bagdir"), rules));
+
+        assertEquals("rule could not be run", exception.getMessage());
+        Mockito.verify(fakeRule, Mockito.never()).validate(Mockito.any());
+    }
+
+    @Test
+    void validateBag_should_rethrow_error_of_rule_run_on_executor() throws Exception {
+        var fakeRule = Mockito.mock(BagValidatorRule.class);
+        Mockito.when(fakeRule.validate(Mockito.any())).thenReturn(RuleResult.ok());
+        var rules = List.of(
+            new NumberedRule("1.1", path -> {
+                throw new AssertionError("rule is broken");
+            }),
+            new NumberedRule("1.2", fakeRule, List.of("1.1")),
+            new NumberedRule("1.3", fakeRule));
+
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            var error = assertTimeoutPreemptively(Duration.ofSeconds(5),
+                () -> assertThrows(AssertionError.class, () -> new RuleEngineImpl(executor).validateBag(Path.of("bagdir"), rules)));
+
+            assertEquals("rule is broken", error.getMessage());
+            Mockito.verify(fakeRule, Mockito.atMostOnce()).validate(Mockito.any());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void validateBag_should_reuse_compiled_rule_set_for_many_bags() throws Exception {
+        var fakeRule = Mockito.mock(BagValidatorRule.class);
+        Mockito.when(fakeRule.validate(Path.of("good"))).thenReturn(RuleResult.ok());
+        Mockito.when(fakeRule.validate(Path.of("bad"))).thenReturn(RuleResult.error("bad bag"));
+        // declared before its dependency, so it has to be executed out of list order
+        var rules = List.of(
+            new NumberedRule("1.2", fakeRule, List.of("1.1")),
+            new NumberedRule("1.1", fakeRule));
+
+        var engine = new RuleEngineImpl();
+        var ruleSet = engine.compileRuleSet(rules);
+
+        assertEquals(List.of(
+            new RuleValidationResult("1.2", RuleValidationResult.RuleValidationResultStatus.SUCCESS),
+            new RuleValidationResult("1.1", RuleValidationResult.RuleValidationResultStatus.SUCCESS)), engine.validateBag(Path.of("good"), ruleSet));
+        assertEquals(List.of(
+            new RuleValidationResult("1.2", RuleValidationResult.RuleValidationResultStatus.SKIPPED),
+            new RuleValidationResult("1.1", RuleValidationResult.RuleValidationResultStatus.FAILURE, "bad bag")), engine.validateBag(Path.of("bad"), ruleSet));
+    }
+
+    @Test
+    void validateBag_with_compiled_rule_set_should_default_to_validating_its_rules() throws Exception {
+        var rules = List.of(new NumberedRule("1.1", path -> RuleResult.ok()));
+        var expected = List.of(new RuleValidationResult("1.1", RuleValidationResult.RuleValidationResultStatus.SUCCESS));
+        var engine = new RuleEngine() {
+
+            @Override
+            public void validateRuleSet(List<NumberedRule> rules) {
+            }
+
+            @Override
+            public List<RuleValidationResult> validateBag(Path bag, List<NumberedRule> ruleList) {
+                assertEquals(rules, ruleList);
+                return expected;
+            }
+        };
+
+        assertEquals(expected, engine.validateBag(Path.of("bagdir"), engine.compileRuleSet(rules)));
+    }
+
+    @Test
+    void validateBag_should_run_rules_sequentially_in_rounds_over_the_rule_list() throws Exception {
+        var executed = new ArrayList<String>();
+        var engine = new RuleEngineImpl();
+
+        engine.validateBag(Path.of("bagdir"), List.of(
+            new NumberedRule("A", path -> record(executed, "A")),
+            new NumberedRule("B", path -> record(executed, "B"), List.of("A")),
+            new NumberedRule("C", path -> record(executed, "C"))));
+        assertEquals(List.of("A", "B", "C"), executed);
+
+        executed.clear();
+        engine.validateBag(Path.of("bagdir"), List.of(
+            new NumberedRule("B", path -> record(executed, "B"), List.of("C")),
+            new NumberedRule("C", path -> record(executed, "C")),
+            new NumberedRule("A", path -> record(executed, "A"))));
+        assertEquals(List.of("C", "A", "B"), executed);
+    }
+
+    private static RuleResult record(List<String> executed, String number) {
+        executed.add(number);
+        return RuleResult.ok();
+    }
+
+    @Test
+    void compile_should_leave_rules_with_unresolvable_dependencies_out_of_execution_order() {
+        BagValidatorRule rule = path -> RuleResult.ok();
+        var ruleSet = CompiledRuleSet.compile(List.of(
+            new NumberedRule("1.1", rule),
+            new NumberedRule("1.2", rule, List.of("1.3")),
+            new NumberedRule("1.3", rule, List.of("1.2")),
+            new NumberedRule("1.4", rule, List.of("1.1")),
+            new NumberedRule("1.5", rule, List.of("9.9"))));
+
+        assertArrayEquals(new int[] { 0, 3 }, ruleSet.getOrder());
+        assertEquals(List.of("1.2", "1.3", "1.5"), ruleSet.getUnexecutableRules().stream().map(NumberedRule::getNumber).collect(Collectors.toList()));
+    }
+
+    @Test
+    void validateRuleSet_should_throw_with_path_of_circular_dependency() {
+        BagValidatorRule rule = path -> RuleResult.ok();
+        var rules = List.of(
+            new NumberedRule("1.1", rule),
+            new NumberedRule("1.2", rule, List.of("1.1", "1.4")),
+            new NumberedRule("1.3", rule, List.of("1.2")),
+            new NumberedRule("1.4", rule, List.of("1.3")));
+
+        var exception = assertThrows(RuleEngineConfigurationException.class, () -> new RuleEngineImpl().validateRuleSet(rules));
+
+        assertEquals("Circular dependencies found: 1.2 -> 1.4 -> 1.3 -> 1.2", exception.getMessage());
+    }
+
+    @Test
+    void compiled_rule_set_should_report_depths_and_critical_path() throws Exception {
+        BagValidatorRule rule = path -> RuleResult.ok();
+        var ruleSet = new RuleEngineImpl().compileRuleSet(List.of(
+            new NumberedRule("1.1", rule),
+            new NumberedRule("1.2", rule, List.of("1.1")),
+            new NumberedRule("1.3", rule, List.of("1.2")),
+            new NumberedRule("2.1", rule),
+            new NumberedRule("2.2", rule, List.of("2.1", "1.1"))));
+
+        assertEquals(Map.of("1.1", 0, "1.2", 1, "1.3", 2, "2.1", 0, "2.2", 1), ruleSet.getDepths());
+        assertEquals("1.1 -> 1.2 -> 1.3", ruleSet.getCriticalPath(Map.of()).format());
+
+        var criticalPath = ruleSet.getCriticalPath(Map.of("1.1", Duration.ofMillis(10), "1.2", Duration.ofMillis(10), "2.1", Duration.ofSeconds(1), "2.2", Duration.ofMillis(5)));
+        assertEquals("2.1 -> 2.2", criticalPath.format());
+        assertEquals(Duration.ofMillis(1005), criticalPath.getDuration());
+    }
+
+    @Test
+    void validateBag_should_share_bag_context_between_rules_and_close_it_afterwards() throws Exception {
+        var loads = new AtomicInteger();
+        var closed = new AtomicBoolean();
+        var manifest = BagContext.key("manifest", (bag, context) -> {
+            loads.incrementAndGet();
+            return (AutoCloseable) () -> closed.set(true);
+        });
+        ContextualBagValidatorRule rule = (bag, context) -> {
+            context.get(manifest);
+            return closed.get() ? RuleResult.error("closed too early") : RuleResult.ok();
+        };
+        var rules = List.of(
+            new NumberedRule("1.1", rule),
+            new NumberedRule("1.2", rule),
+            new NumberedRule("1.3", rule, List.of("1.1")));
+
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            var result = new RuleEngineImpl(executor).validateBag(Path.of("bagdir"), rules);
+
+            assertTrue(result.stream().allMatch(r -> r.getStatus() == RuleValidationResult.RuleValidationResultStatus.SUCCESS));
+            assertEquals(1, loads.get());
+            assertTrue(closed.get());
+        }
+        finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void validateBag_should_measure_rules_and_publish_metrics() throws Exception {
+        var metricRegistry = new MetricRegistry();
+        BagValidatorRule slowRule = path -> {
+            Thread.sleep(50);
+            return RuleResult.ok();
+        };
+        BagValidatorRule allocatingRule = path -> new byte[1_000_000].length > 0 ? RuleResult.error("too big") : RuleResult.ok();
+        var rules = List.of(
+            new NumberedRule("1.1", slowRule),
+            new NumberedRule("1.2", allocatingRule),
+            new NumberedRule("1.3", slowRule, List.of("1.2")));
+
+        var engine = new RuleEngineImpl(null, metricRegistry);
+        var result = engine.validateBag(Path.of("bagdir"), rules);
+
+        assertTrue(result.get(0).getWallTime().compareTo(Duration.ofMillis(50)) >= 0);
+        assertTrue(result.get(1).getAllocatedBytes() == -1 || result.get(1).getAllocatedBytes() >= 1_000_000);
+        assertEquals(Duration.ZERO, result.get(2).getWallTime());
+        assertEquals(1, metricRegistry.timer("nl.knaw.dans.lib.util.ruleengine.RuleEngineImpl.rules.1.1.wall-time").getCount());
+        assertEquals(1, metricRegistry.timer("nl.knaw.dans.lib.util.ruleengine.RuleEngineImpl.rules.1.2.wall-time").getCount());
+        assertEquals(Set.of("1.1", "1.2"), engine.getObservedDurations().keySet());
+        assertTrue(engine.getObservedDurations().get("1.1").compareTo(Duration.ofMillis(50)) >= 0);
+    }
+}